@@ -7,9 +7,9 @@ import org.aion.avm.tooling.AddressUtil;
 import org.aion.avm.tooling.abi.Callable;
 import org.aion.avm.userlib.AionBuffer;
 import org.aion.avm.userlib.AionList;
-import org.aion.avm.userlib.AionSet;
 import org.aion.avm.userlib.abi.ABIDecoder;
 import org.aion.avm.userlib.abi.ABIEncoder;
+import org.aion.avm.userlib.abi.ABIStreamingEncoder;
 
 import javax.xml.crypto.Data;
 import java.math.BigInteger;
@@ -20,28 +20,92 @@ public class ATSTokenContract {
 
     /***********************************************Constants***********************************************/
     private static final int BIGINTEGER_LENGTH = 32;
+    private static final Address ZERO_ADDRESS = new Address(new byte[Address.LENGTH]);
+    private static final byte[] EMPTY_BYTES = new byte[0];
+    private static final byte BALANCE_PREFIX = 0x01;
+    private static final byte OPERATORS_PREFIX = 0x02;
+    private static final byte OPERATOR_PREFIX = 0x03;
+    private static final byte OPERATOR_SLOT_PREFIX = 0x04;
+    private static final byte BALANCE_FORMAT_LONG = 0x01;
+    private static final byte BALANCE_FORMAT_BIG_INTEGER = 0x02;
+    private static final byte BALANCE_FORMAT_MASK = 0x0F;
+    private static final byte BALANCE_CHECKPOINTS_FLAG = 0x10;
+    private static final int LONG_BALANCE_LENGTH = 1 + Long.BYTES;
+    private static final byte AIRDROP_CLAIMED_PREFIX = 0x05;
+    private static final byte CHECKPOINTS_PREFIX = 0x06;
+    private static final byte CHECKPOINT_PREFIX = 0x07;
+    private static final int CHECKPOINT_LENGTH = Long.BYTES + BIGINTEGER_LENGTH;
+    private static final byte DIVIDENDS_PREFIX = 0x08;
+    private static final int DIVIDENDS_PER_TOKEN_SHIFT = 128;
+    private static final byte NONCE_PREFIX = 0x09;
+    private static final int PUBLIC_KEY_LENGTH = 32;
+    private static final int SIGNATURE_LENGTH = 64;
+    private static final byte RELAY_SEND = 0x01;
+    private static final byte RELAY_AUTHORIZE_OPERATOR = 0x02;
+    private static final byte RELAY_REVOKE_OPERATOR = 0x03;
+    private static final int HASH_LENGTH = 32;
+    private static final byte TOKEN_HOOKS_PREFIX = 0x0A;
+    private static final byte TOKENS_SENDER_HOOK = 0x01;
+    private static final byte TOKENS_RECIPIENT_HOOK = 0x02;
+    private static final byte CONTRACT_ACCOUNT = 0x04;
+    private static final byte TOKEN_HOOKS_CACHED = 0x08;
+    private static final byte DEFAULT_OPERATOR_OPT_OUT_PREFIX = 0x0B;
+    private static final int OPERATOR_INFORMATION_LENGTH = Integer.BYTES + Integer.BYTES + Long.BYTES;
+    private static final int OPERATOR_FILTER_HASHES = 3;
+    private static final long ALL_OPERATORS_FILTER = -1L;
+    private static final byte EXECUTE_SEND = 0x01;
+    private static final byte EXECUTE_OPERATOR_SEND = 0x02;
+    private static final byte EXECUTE_AUTHORIZE_OPERATOR = 0x03;
+    private static final byte EXECUTE_REVOKE_OPERATOR = 0x04;
 
     /******************************************ATS Contract State******************************************/
     private static String tokenName;
     private static String tokenSymbol;
     private static int tokenGranularity;
     private static BigInteger tokenTotalSupply;
+    private static Address tokenCreator;
+    private static byte[] airdropMerkleRoot;
+    private static BigInteger dividendsPerToken;
+    private static Address[] defaultOperators;
+    private static StorageCache storageCache; //only set while execute or relayBatch runs
     //private static Address AIRContract = new Address("0xa062407049f4fa5fb15f088f115fe87f6d6231e45c2e8f8448a44c282a9d7bf3".getBytes());
 
 
     /**************************************Deployment Initialization***************************************/
     static {
-        ABIDecoder decoder = new ABIDecoder(Blockchain.getData());
+        byte[] data = Blockchain.getData();
+        ABIDecoder decoder = new ABIDecoder(data);
         tokenName = decoder.decodeOneString();
         Blockchain.require(tokenName.length() > 0);
         tokenSymbol = decoder.decodeOneString();
         Blockchain.require(tokenSymbol.length() > 0);
         tokenGranularity = decoder.decodeOneInteger();
         Blockchain.require(tokenGranularity >= 1);
-        tokenTotalSupply = new BigInteger(decoder.decodeOneByteArray());
+        byte[] totalSupply = decoder.decodeOneByteArray();
+        tokenTotalSupply = new BigInteger(totalSupply);
         Blockchain.require(tokenTotalSupply.compareTo(BigInteger.ZERO) == 1);
 
-        initialize();
+        /*Genesis allocations are optional, they follow the total supply as an Address[] and a byte[][] of amounts.
+          Default operators are optional too, they follow the genesis allocations as an Address[].*/
+        int decodedLength = ABIEncoder.encodeOneString(tokenName).length
+                + ABIEncoder.encodeOneString(tokenSymbol).length
+                + ABIEncoder.encodeOneInteger(tokenGranularity).length
+                + ABIEncoder.encodeOneByteArray(totalSupply).length;
+        Address[] genesisHolders = null;
+        byte[][] genesisAmounts = null;
+        if (data.length > decodedLength) {
+            genesisHolders = decoder.decodeOneAddressArray();
+            genesisAmounts = decoder.decodeOne2DByteArray();
+            decodedLength += ABIEncoder.encodeOneAddressArray(genesisHolders).length
+                    + ABIEncoder.encodeOne2DByteArray(genesisAmounts).length;
+        }
+        defaultOperators = new Address[0];
+        if (data.length > decodedLength) {
+            defaultOperators = decoder.decodeOneAddressArray();
+            Blockchain.require(defaultOperators != null);
+        }
+
+        initialize(genesisHolders, genesisAmounts);
 
         //ToDo: Register in the AIR
     }
@@ -49,12 +113,34 @@ public class ATSTokenContract {
 
     /********************************************Initialization********************************************/
     /**
-     * The creator of the token contract holds the total supply.
-     * Log the token creation.
+     * Each genesis holder receives its allocation, the creator of the token contract holds the rest of the total supply.
+     * Log the token creation, with the genesis allocations as its data.
+     *
+     * @param genesisHolders holders receiving tokens at deployment, or null
+     * @param genesisAmounts amount for each genesis holder, in the same order
      */
-    private static void initialize() {
-        Blockchain.putStorage(Blockchain.getCaller().toByteArray(), AionBuffer.allocate(BIGINTEGER_LENGTH).put32ByteInt(tokenTotalSupply).getArray());
-        ATSTokenContractEvents.ATSTokenCreated(tokenTotalSupply, Blockchain.getCaller());
+    private static void initialize(Address[] genesisHolders, byte[][] genesisAmounts) {
+        Address creator = Blockchain.getCaller();
+        tokenCreator = creator;
+        dividendsPerToken = BigInteger.ZERO;
+        BigInteger creatorBalance = tokenTotalSupply;
+        byte[] genesisAllocations = EMPTY_BYTES;
+        if (genesisHolders != null) {
+            Blockchain.require(genesisAmounts != null && genesisAmounts.length == genesisHolders.length);
+            AionBuffer allocations = AionBuffer.allocate(genesisHolders.length * (Address.LENGTH + BIGINTEGER_LENGTH));
+            for (int i = 0; i < genesisHolders.length; i++) {
+                BigInteger amount = new BigInteger(genesisAmounts[i]);
+                requireValidTransfer(genesisHolders[i], amount);
+                creatorBalance = creatorBalance.subtract(amount);
+                Blockchain.require(creatorBalance.signum() > -1); //allocations can not exceed the total supply
+                creditBalance(genesisHolders[i], amount);
+                allocations.putAddress(genesisHolders[i]).put32ByteInt(amount);
+            }
+            genesisAllocations = allocations.getArray();
+        }
+        creditBalance(creator, creatorBalance);
+        writeCheckpoint(Blockchain.getAddress(), AionBuffer.allocate(BIGINTEGER_LENGTH).put32ByteInt(tokenTotalSupply).getArray());
+        ATSTokenContractEvents.ATSTokenCreated(tokenTotalSupply, creator, genesisAllocations);
     }
 
 
@@ -75,9 +161,34 @@ public class ATSTokenContract {
         return tokenGranularity;
     }
 
+    /**
+     * Total supply in the same form as the amounts taken by send.
+     *
+     * @return BigInteger.toByteArray() of the total supply
+     */
+    @Callable
+    public static byte[] getTokenTotalSupply() {
+        return tokenTotalSupply.toByteArray();
+    }
+
+    /**
+     * All token metadata in one call:
+     * granularity (int), total supply (32 bytes), name length (int), name, symbol length (int), symbol.
+     *
+     * @return
+     */
     @Callable
-    public static String getTokenTotalSupply() {
-        return tokenTotalSupply.toString();
+    public static byte[] getTokenInfo() {
+        byte[] name = tokenName.getBytes();
+        byte[] symbol = tokenSymbol.getBytes();
+        return AionBuffer.allocate(Integer.BYTES + BIGINTEGER_LENGTH + Integer.BYTES + name.length + Integer.BYTES + symbol.length)
+                .putInt(tokenGranularity)
+                .put32ByteInt(tokenTotalSupply)
+                .putInt(name.length)
+                .put(name)
+                .putInt(symbol.length)
+                .put(symbol)
+                .getArray();
     }
 
     /*********************************************Token Holder*********************************************/
@@ -89,213 +200,1387 @@ public class ATSTokenContract {
      */
     @Callable
     public static String getBalanceOf(Address tokenHolder) {
-        byte[] tokenHolderInformation = Blockchain.getStorage(tokenHolder.toByteArray());
-        return !Arrays.equals(tokenHolderInformation, null)
-                ? AionBuffer.wrap(tokenHolderInformation).get32ByteInt().toString()
-                : "0";
+        byte[] balanceInformation = getBalanceInformation(tokenHolder);
+        if (balanceInformation == null) {
+            return "0";
+        }
+        return getBalanceFormat(balanceInformation) == BALANCE_FORMAT_LONG
+                ? Long.toString(getLongBalance(balanceInformation))
+                : decodeBalance(balanceInformation).toString();
+    }
+
+    /**
+     * Balance as 32 bytes, in the same form as the amount of the Sent event.
+     *
+     * @param tokenHolder
+     * @return
+     */
+    @Callable
+    public static byte[] getBalanceOfBytes(Address tokenHolder) {
+        byte[] balance = new byte[BIGINTEGER_LENGTH];
+        copyBalance(getBalanceInformation(tokenHolder), balance, 0);
+        return balance;
+    }
+
+    /**
+     * Balances of many token holders at once, 32 bytes each, in the order of the addresses.
+     *
+     * @param tokenHolders
+     * @return
+     */
+    @Callable
+    public static byte[] getBalancesOf(Address[] tokenHolders) {
+        byte[] balances = new byte[tokenHolders.length * BIGINTEGER_LENGTH];
+        for (int i = 0; i < tokenHolders.length; i++) {
+            copyBalance(getBalanceInformation(tokenHolders[i]), balances, i * BIGINTEGER_LENGTH);
+        }
+        return balances;
+    }
+
+    /**
+     * Operators of every token holder, fixed at deployment, unless the holder revoked them.
+     *
+     * @return
+     */
+    @Callable
+    public static Address[] getDefaultOperators() {
+        return defaultOperators;
     }
 
     @Callable
     public static void authorizeOperator(Address operator) {
-        Blockchain.require(!Blockchain.getCaller().equals(operator));
+        doAuthorizeOperator(Blockchain.getCaller(), operator);
+    }
+
+    @Callable
+    public static void revokeOperator(Address operator) {
+        doRevokeOperator(Blockchain.getCaller(), operator);
+    }
+
+    /**
+     * Authorize many operators at once, the operator information of the caller is read and written once.
+     * Operators which are already authorized, or repeated, are skipped.
+     *
+     * @param operators
+     */
+    @Callable
+    public static void authorizeOperators(Address[] operators) {
+        doAuthorizeOperators(Blockchain.getCaller(), operators);
+    }
+
+    /**
+     * Revoke many operators at once, the operator information of the caller is read and written once.
+     * Operators which are not authorized, or repeated, are skipped.
+     *
+     * @param operators
+     */
+    @Callable
+    public static void revokeOperators(Address[] operators) {
+        doRevokeOperators(Blockchain.getCaller(), operators);
+    }
+
+    /**
+     * Revoke every operator of the caller at once, by starting a new authorization epoch.
+     * Authorizations of earlier epochs are left in storage and ignored.
+     */
+    @Callable
+    public static void revokeAllOperators() {
         Address tokenHolderAddress = Blockchain.getCaller();
-        byte[] tokenHolderInformation = Blockchain.getStorage(tokenHolderAddress.toByteArray());
-        if (tokenHolderInformation == null ) { /*No related information yet.
-                                                    Add balance as 0 first to make sure first 32 bytes of token holder information is balance.
-                                                    Set number of operators to 1.
-                                                    Following by the operator.*/
-            byte[] newInformation = AionBuffer.allocate(BIGINTEGER_LENGTH + Address.LENGTH)
-                    .put32ByteInt(BigInteger.ZERO)
-                    .putAddress(operator)
-                    .getArray();
-            Blockchain.putStorage(tokenHolderAddress.toByteArray(), newInformation);
-            ATSTokenContractEvents.AuthorizedOperator(operator, tokenHolderAddress);
-        } else {
-            TokenHolderInformation tokenHolder = new TokenHolderInformation(tokenHolderInformation);
-            boolean addOperatorSuccess = tokenHolder.tryAddOperator(operator);
-            if(addOperatorSuccess) {
-                Blockchain.putStorage(tokenHolderAddress.toByteArray(), tokenHolder.currentTokenHolderInformation);
+        TokenHolderInformation tokenHolder = new TokenHolderInformation(tokenHolderAddress, true);
+        tokenHolder.revokeAllOperators();
+        tokenHolder.saveOperatorInformation();
+        for (Address defaultOperator : defaultOperators) {
+            optOutOfDefaultOperator(tokenHolderAddress, defaultOperator);
+        }
+        ATSTokenContractEvents.RevokedAllOperators(tokenHolderAddress);
+    }
+
+    private static void doAuthorizeOperator(Address tokenHolderAddress, Address operator) {
+        doAuthorizeOperators(tokenHolderAddress, new Address[]{operator});
+    }
+
+    private static void doRevokeOperator(Address tokenHolderAddress, Address operator) {
+        doRevokeOperators(tokenHolderAddress, new Address[]{operator});
+    }
+
+    private static void doAuthorizeOperators(Address tokenHolderAddress, Address[] operators) {
+        TokenHolderInformation tokenHolder = null;
+        boolean operatorsChanged = false;
+        for (Address operator : operators) {
+            Blockchain.require(!tokenHolderAddress.equals(operator));
+            if (isDefaultOperator(operator)) {
+                byte[] optOutKey = getStorageKey(DEFAULT_OPERATOR_OPT_OUT_PREFIX, tokenHolderAddress, operator);
+                if (!isEmpty(getStorage(optOutKey))) {
+                    putStorage(optOutKey, EMPTY_BYTES);
+                    ATSTokenContractEvents.AuthorizedOperator(operator, tokenHolderAddress);
+                }
+                continue;
+            }
+            if (tokenHolder == null) {
+                tokenHolder = new TokenHolderInformation(tokenHolderAddress, true);
+            }
+            if (tokenHolder.tryAddOperator(operator)) {
+                operatorsChanged = true;
                 ATSTokenContractEvents.AuthorizedOperator(operator, tokenHolderAddress);
             }
         }
+        if (operatorsChanged) {
+            tokenHolder.saveOperatorInformation();
+        }
     }
 
-    @Callable
-    public static void revokeOperator(Address operator) {
-        if (!Blockchain.getCaller().equals(operator)) {
-            Address tokenHolderAddress = Blockchain.getCaller();
-            byte[] tokenHolderInformation = Blockchain.getStorage(tokenHolderAddress.toByteArray());
-            if(tokenHolderInformation != null && tokenHolderInformation.length != BIGINTEGER_LENGTH) {
-                TokenHolderInformation tokenHolder = new TokenHolderInformation(tokenHolderInformation);
-                boolean tryRevokeOperator = tokenHolder.tryReveokeOperator(operator);
-                if(tryRevokeOperator) {
-                    Blockchain.putStorage(tokenHolderAddress.toByteArray(), tokenHolder.currentTokenHolderInformation);
-                    ATSTokenContractEvents.RevokedOperator(operator, tokenHolderAddress);
-                }
+    private static void doRevokeOperators(Address tokenHolderAddress, Address[] operators) {
+        TokenHolderInformation tokenHolder = null;
+        boolean operatorsChanged = false;
+        for (Address operator : operators) {
+            if (tokenHolderAddress.equals(operator)) {
+                continue;
+            }
+            if (isDefaultOperator(operator)) {
+                optOutOfDefaultOperator(tokenHolderAddress, operator);
+                continue;
+            }
+            if (tokenHolder == null) {
+                tokenHolder = new TokenHolderInformation(tokenHolderAddress, true);
+            }
+            if (tokenHolder.tryReveokeOperator(operator)) {
+                operatorsChanged = true;
+                ATSTokenContractEvents.RevokedOperator(operator, tokenHolderAddress);
             }
         }
+        if (operatorsChanged) {
+            tokenHolder.saveOperatorInformation();
+        }
     }
 
 
     @Callable
     public static boolean isOperatorFor(Address operator, Address tokenHolder) {
         if (operator.equals(tokenHolder)) return true;
-        byte[] tokenHolderInformation = Blockchain.getStorage(tokenHolder.toByteArray());
-        if(tokenHolderInformation != null && tokenHolderInformation.length != BIGINTEGER_LENGTH) {
-            TokenHolderInformation tokenHolderInfo = new TokenHolderInformation(tokenHolderInformation);
-            return tokenHolderInfo.isOperatorFor(operator,tokenHolderInformation);
-        } else return false;
+        if (isDefaultOperator(operator)) {
+            return isEmpty(getStorage(getStorageKey(DEFAULT_OPERATOR_OPT_OUT_PREFIX, tokenHolder, operator)));
+        }
+        return new TokenHolderInformation(tokenHolder, false).isOperatorFor(operator);
+    }
+
+    /**
+     * Number of operators the token holder authorized, default operators are not counted.
+     *
+     * @param tokenHolder
+     * @return
+     */
+    @Callable
+    public static int getOperatorCount(Address tokenHolder) {
+        return new TokenHolderInformation(tokenHolder, false).operatorCount;
+    }
+
+    /**
+     * Page through the operators the token holder authorized, default operators are not listed.
+     * Revoking an operator moves the last operator into its slot, so pages read in different blocks may overlap.
+     *
+     * @param tokenHolder
+     * @param offset      slot of the first operator
+     * @param limit       maximum number of operators
+     * @return operator addresses, 32 bytes each
+     */
+    @Callable
+    public static byte[] getOperators(Address tokenHolder, int offset, int limit) {
+        Blockchain.require(offset >= 0 && limit >= 0);
+        TokenHolderInformation tokenHolderInformation = new TokenHolderInformation(tokenHolder, false);
+        int operatorCount = tokenHolderInformation.operatorCount;
+        if (offset >= operatorCount) {
+            return EMPTY_BYTES;
+        }
+        int end = limit < operatorCount - offset ? offset + limit : operatorCount; //java.lang.Math is not available in the AVM
+        if (end <= offset) {
+            return EMPTY_BYTES;
+        }
+        AionBuffer operators = AionBuffer.allocate((end - offset) * Address.LENGTH);
+        for (int slot = offset; slot < end; slot++) {
+            operators.put(tokenHolderInformation.getOperatorBytes(slot));
+        }
+        return operators.getArray();
+    }
 
+    /**
+     * Default operators are kept once for all holders, a holder who revokes one only stores an opt-out record.
+     */
+    private static boolean isDefaultOperator(Address operator) {
+        for (Address defaultOperator : defaultOperators) {
+            if (defaultOperator.equals(operator)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static void optOutOfDefaultOperator(Address tokenHolder, Address operator) {
+        byte[] optOutKey = getStorageKey(DEFAULT_OPERATOR_OPT_OUT_PREFIX, tokenHolder, operator);
+        if (isEmpty(getStorage(optOutKey))) {
+            putStorage(optOutKey, new byte[]{1});
+            ATSTokenContractEvents.RevokedOperator(operator, tokenHolder);
+        }
     }
 
+    /**
+     * Move a token holder written in the single-record layout to the split layout.
+     * Holders are also migrated the first time a transaction changes them, this lets anyone do it ahead of time.
+     * Reads leave such holders as they are.
+     *
+     * @param tokenHolder
+     */
+    @Callable
+    public static void migrateTokenHolder(Address tokenHolder) {
+        migrateLegacyTokenHolderInformation(tokenHolder);
+    }
+
+    /**
+     * Operators of a token holder, stored as an indexed set so that every operation costs the same
+     * whatever the number of operators:
+     * - the operator information record holds the number of operators,
+     * - each authorization is a (holder, operator) record holding the slot of the operator,
+     * - each slot is a (holder, slot) record holding the operator address.
+     * Revoking moves the operator of the last slot into the freed one.
+     * The operator information record also holds the authorization epoch of the holder, and each authorization
+     * the epoch it was made in: revoking all operators starts a new epoch, which makes every authorization stale.
+     * Last comes a 64-bit Bloom filter of the operators, so that most addresses which are not operators
+     * are told apart without reading their authorization. Revoking does not clear bits, the filter is only
+     * emptied when no operator is left.
+     * A holder still in the single-record layout is read from that record, which lists its operators in slot order.
+     */
     private static class TokenHolderInformation {
-        private byte[] currentTokenHolderInformation;
-        int currentTokenHolderInfoLength;
-
-        private TokenHolderInformation(byte[] currentTokenHolderInformation) {
-            this.currentTokenHolderInformation = currentTokenHolderInformation;
-            this.currentTokenHolderInfoLength = currentTokenHolderInformation.length;
-        }
-
-        private boolean isOperatorFor(Address operator, byte[] tokenHolderInfo) {
-            AionBuffer tokenHolderInformation = AionBuffer.wrap(tokenHolderInfo);
-            tokenHolderInformation.get32ByteInt();
-            //boolean isOperatorFor = false;
-            while (/*!isOperatorFor && */(tokenHolderInformation.getPosition() < tokenHolderInformation.getCapacity())) {
-                Address operatorWalker = tokenHolderInformation.getAddress();
-                if (operator.equals(operatorWalker)) {
-                    return true;
-                }
+        private final Address tokenHolder;
+        private int operatorCount;
+        private int authorizationEpoch;
+        private long operatorFilter;
+        private byte[] legacyInformation; //only set when a holder of the single-record layout is read without migrating it
+
+        /**
+         * @param tokenHolder
+         * @param migrate     move a holder of the single-record layout to the split layout, for callables which change it;
+         *                    reads leave storage as it is
+         */
+        private TokenHolderInformation(Address tokenHolder, boolean migrate) {
+            this.tokenHolder = tokenHolder;
+            byte[] operatorInformation = getStorage(getStorageKey(OPERATORS_PREFIX, tokenHolder));
+            if (!isEmpty(operatorInformation)) {
+                AionBuffer buffer = AionBuffer.wrap(operatorInformation);
+                this.operatorCount = buffer.getInt();
+                this.authorizationEpoch = buffer.getInt();
+                this.operatorFilter = operatorInformation.length < OPERATOR_INFORMATION_LENGTH ? ALL_OPERATORS_FILTER : buffer.getLong();
+                return;
+            }
+            byte[] legacyInformation = migrate ? migrateLegacyTokenHolderInformation(tokenHolder) : getStorage(tokenHolder.toByteArray());
+            if (isEmpty(legacyInformation)) {
+                return;
+            }
+            this.operatorCount = getLegacyOperatorCount(legacyInformation);
+            this.operatorFilter = getLegacyOperatorFilter(legacyInformation);
+            if (!migrate) {
+                this.legacyInformation = legacyInformation;
             }
-            return false;
         }
 
-        private boolean tryAddOperator(Address newOperator) {
+        private boolean mightBeOperator(Address operator) {
+            long operatorBits = getOperatorFilterBits(operator);
+            return (operatorFilter & operatorBits) == operatorBits;
+        }
 
-           if (currentTokenHolderInformation.length == BIGINTEGER_LENGTH) { /*has balance but no operator yet*/
-                byte[] newTokenHolderInformation = AionBuffer.allocate(BIGINTEGER_LENGTH + Address.LENGTH)
-                        .put32ByteInt(AionBuffer.wrap(this.currentTokenHolderInformation).get32ByteInt())  //balance
-                        .putAddress(newOperator)
-                        .getArray();
-                currentTokenHolderInformation = newTokenHolderInformation;
-                return true;
-            } else{
-                boolean isOperatorFor = isOperatorFor(newOperator,currentTokenHolderInformation);
-                if (!isOperatorFor) {
-                    AionBuffer tokenHolderInfoBuffer = AionBuffer.wrap(currentTokenHolderInformation);
-                    tokenHolderInfoBuffer.get32ByteInt();
-                    byte[] newTokenHolderInformation = new byte[this.currentTokenHolderInfoLength + Address.LENGTH];
-                    System.arraycopy(this.currentTokenHolderInformation, 0,
-                            newTokenHolderInformation, 0,
-                            currentTokenHolderInfoLength);
-                    System.arraycopy(newOperator.toByteArray(), 0,
-                            newTokenHolderInformation, currentTokenHolderInfoLength,
-                            Address.LENGTH);
-                    currentTokenHolderInformation = newTokenHolderInformation;
-                    return true;
+        private boolean isOperatorFor(Address operator) {
+            if (operatorCount == 0 || !mightBeOperator(operator)) {
+                return false;
+            }
+            if (legacyInformation != null) {
+                for (int slot = 0; slot < operatorCount; slot++) {
+                    if (Arrays.equals(getOperatorBytes(slot), operator.toByteArray())) {
+                        return true;
+                    }
                 }
                 return false;
             }
+            return getOperatorSlot(getStorage(getStorageKey(OPERATOR_PREFIX, tokenHolder, operator))) >= 0;
+        }
+
+        /**
+         * @return the slot of the authorization, or -1 if there is none in the current epoch
+         */
+        private int getOperatorSlot(byte[] operatorSlot) {
+            if (isEmpty(operatorSlot)) {
+                return -1;
+            }
+            AionBuffer buffer = AionBuffer.wrap(operatorSlot);
+            int slot = buffer.getInt();
+            return buffer.getInt() == authorizationEpoch ? slot : -1;
+        }
+
+        private boolean tryAddOperator(Address newOperator) {
+            byte[] operatorKey = getStorageKey(OPERATOR_PREFIX, tokenHolder, newOperator);
+            if (operatorCount > 0 && mightBeOperator(newOperator) && getOperatorSlot(getStorage(operatorKey)) >= 0) {
+                return false;
+            }
+            putOperatorSlot(newOperator, operatorKey, operatorCount);
+            operatorCount++;
+            operatorFilter |= getOperatorFilterBits(newOperator);
+            return true;
         }
 
         private boolean tryReveokeOperator(Address revokeOperator) {
-            AionBuffer tokenHolderInfoBuffer =  AionBuffer.wrap(currentTokenHolderInformation);
-            tokenHolderInfoBuffer.get32ByteInt();
-            //boolean isOperatorFor = false;
-            int walker = 0;
-            while(/*!isOperatorFor && */(tokenHolderInfoBuffer.getPosition() < tokenHolderInfoBuffer.getLimit())) {
-                Address operatorWalker = tokenHolderInfoBuffer.getAddress();
-                if(revokeOperator.equals(operatorWalker)) {
-                    //isOperatorFor = true;
-                    byte[] newTokenHolderInformation = new byte[this.currentTokenHolderInfoLength - Address.LENGTH];
-                    System.arraycopy(this.currentTokenHolderInformation,0,
-                                    newTokenHolderInformation,0,
-                            (BIGINTEGER_LENGTH + walker * Address.LENGTH));
-                    System.arraycopy(this.currentTokenHolderInformation, (BIGINTEGER_LENGTH + (walker + 1)* Address.LENGTH),
-                                      newTokenHolderInformation,(BIGINTEGER_LENGTH + walker * Address.LENGTH), (currentTokenHolderInfoLength- (BIGINTEGER_LENGTH + (walker + 1)* Address.LENGTH)));
-                    currentTokenHolderInformation = newTokenHolderInformation;
-                    return true;
+            if (operatorCount == 0 || !mightBeOperator(revokeOperator)) {
+                return false;
+            }
+            byte[] operatorKey = getStorageKey(OPERATOR_PREFIX, tokenHolder, revokeOperator);
+            int slot = getOperatorSlot(getStorage(operatorKey));
+            if (slot < 0) {
+                return false;
+            }
+            int lastSlot = operatorCount - 1;
+            if (slot != lastSlot) {
+                Address lastOperator = new Address(getStorage(getStorageKey(OPERATOR_SLOT_PREFIX, tokenHolder, lastSlot)));
+                putOperatorSlot(lastOperator, getStorageKey(OPERATOR_PREFIX, tokenHolder, lastOperator), slot);
+            }
+            putStorage(getStorageKey(OPERATOR_SLOT_PREFIX, tokenHolder, lastSlot), EMPTY_BYTES);
+            putStorage(operatorKey, EMPTY_BYTES);
+            operatorCount--;
+            if (operatorCount == 0) {
+                operatorFilter = 0;
+            }
+            return true;
+        }
+
+        private byte[] getOperatorBytes(int slot) {
+            if (legacyInformation != null) {
+                int operatorStart = BIGINTEGER_LENGTH + slot * Address.LENGTH;
+                return Arrays.copyOfRange(legacyInformation, operatorStart, operatorStart + Address.LENGTH);
+            }
+            return getStorage(getStorageKey(OPERATOR_SLOT_PREFIX, tokenHolder, slot));
+        }
+
+        private void revokeAllOperators() {
+            operatorCount = 0;
+            authorizationEpoch++;
+            operatorFilter = 0;
+        }
+
+        private void putOperatorSlot(Address operator, byte[] operatorKey, int slot) {
+            putStorage(getStorageKey(OPERATOR_SLOT_PREFIX, tokenHolder, slot), operator.toByteArray());
+            putStorage(operatorKey, encodeOperatorSlot(slot, authorizationEpoch));
+        }
+
+        private void saveOperatorInformation() {
+            putStorage(getStorageKey(OPERATORS_PREFIX, tokenHolder), encodeOperatorInformation(operatorCount, authorizationEpoch, operatorFilter));
+        }
+    }
+
+    /**
+     * Write the new balance back under the key it was read from.
+     * A long balance record is overwritten in place, any other record is encoded again.
+     *
+     * @param tokenHolder
+     * @param balanceKey
+     * @param balanceInformation balance record, overwritten if it is a long record
+     * @param newAmount
+     */
+    private static void updateBalance(Address tokenHolder, byte[] balanceKey, byte[] balanceInformation, BigInteger newAmount) {
+        if (getBalanceFormat(balanceInformation) == BALANCE_FORMAT_LONG && newAmount.bitLength() < Long.SIZE) {
+            putLongBalance(balanceInformation, newAmount.longValue());
+            putBalanceInformation(tokenHolder, balanceKey, balanceInformation);
+        } else {
+            putBalanceInformation(tokenHolder, balanceKey, encodeBalance(newAmount, getBalanceFlags(balanceInformation)));
+        }
+    }
+
+    /**
+     * Every balance change goes through here, so that holders who enabled checkpoints get one for the new balance.
+     */
+    private static void putBalanceInformation(Address tokenHolder, byte[] balanceKey, byte[] balanceInformation) {
+        putStorage(balanceKey, balanceInformation);
+        if ((getBalanceFlags(balanceInformation) & BALANCE_CHECKPOINTS_FLAG) != 0) {
+            byte[] balance = new byte[BIGINTEGER_LENGTH];
+            copyBalance(balanceInformation, balance, 0);
+            writeCheckpoint(tokenHolder, balance);
+        }
+    }
+
+
+    /*******************************************Balance Record*******************************************/
+    /**
+     * A balance record starts with its format, in the low bits of the first byte:
+     * - BALANCE_FORMAT_LONG, followed by the balance as 8 bytes, for balances that fit in a long,
+     * - BALANCE_FORMAT_BIG_INTEGER, followed by BigInteger.toByteArray() of the balance, which takes the rest of the record.
+     * The high bits of the first byte are flags of the holder, such as BALANCE_CHECKPOINTS_FLAG.
+     *
+     * @param balance
+     * @param flags   flags of the holder
+     * @return the shortest record holding the balance
+     */
+    private static byte[] encodeBalance(BigInteger balance, int flags) {
+        if (balance.bitLength() < Long.SIZE) {
+            byte[] balanceInformation = new byte[LONG_BALANCE_LENGTH];
+            balanceInformation[0] = (byte) (BALANCE_FORMAT_LONG | flags);
+            putLongBalance(balanceInformation, balance.longValue());
+            return balanceInformation;
+        }
+        byte[] value = balance.toByteArray();
+        byte[] balanceInformation = new byte[1 + value.length];
+        balanceInformation[0] = (byte) (BALANCE_FORMAT_BIG_INTEGER | flags);
+        System.arraycopy(value, 0, balanceInformation, 1, value.length);
+        return balanceInformation;
+    }
+
+    private static int getBalanceFormat(byte[] balanceInformation) {
+        return balanceInformation[0] & BALANCE_FORMAT_MASK;
+    }
+
+    private static int getBalanceFlags(byte[] balanceInformation) {
+        return balanceInformation[0] & ~BALANCE_FORMAT_MASK;
+    }
+
+    private static BigInteger decodeBalance(byte[] balanceInformation) {
+        return getBalanceFormat(balanceInformation) == BALANCE_FORMAT_LONG
+                ? BigInteger.valueOf(getLongBalance(balanceInformation))
+                : new BigInteger(Arrays.copyOfRange(balanceInformation, 1, balanceInformation.length));
+    }
+
+    /**
+     * Copy the balance of a record into 32 zeroed bytes of the destination, without decoding it.
+     * Balances are never negative, so no sign extension is needed.
+     *
+     * @param balanceInformation balance record, or null for no balance
+     * @param destination
+     * @param offset             start of the 32 bytes in the destination
+     */
+    private static void copyBalance(byte[] balanceInformation, byte[] destination, int offset) {
+        if (balanceInformation == null) {
+            return;
+        }
+        int valueStart = 1;
+        int valueLength = balanceInformation.length - valueStart;
+        if (valueLength > BIGINTEGER_LENGTH) { /*sign byte of a balance of 256 bits*/
+            valueStart++;
+            valueLength--;
+        }
+        System.arraycopy(balanceInformation, valueStart, destination, offset + BIGINTEGER_LENGTH - valueLength, valueLength);
+    }
+
+    private static long getLongBalance(byte[] balanceInformation) {
+        long balance = 0;
+        for (int i = 1; i < LONG_BALANCE_LENGTH; i++) {
+            balance = (balance << 8) | (balanceInformation[i] & 0xFF);
+        }
+        return balance;
+    }
+
+    private static void putLongBalance(byte[] balanceInformation, long balance) {
+        for (int i = LONG_BALANCE_LENGTH - 1; i > 0; i--) {
+            balanceInformation[i] = (byte) balance;
+            balance >>>= 8;
+        }
+    }
+
+
+    /*******************************************Storage Layout********************************************/
+    /**
+     * Token holder records live under keys derived from the holder address, one key per record type,
+     * so a transfer only rewrites the balance records and never the operators.
+     * The first byte of a derived key is the record type, the rest is taken from the hash of type and address.
+     *
+     * @param prefix      record type
+     * @param tokenHolder
+     * @return 32-byte storage key
+     */
+    private static byte[] getStorageKey(byte prefix, Address tokenHolder) {
+        return hashStorageKey(AionBuffer.allocate(1 + Address.LENGTH)
+                .putByte(prefix)
+                .putAddress(tokenHolder)
+                .getArray());
+    }
+
+    private static byte[] getStorageKey(byte prefix, Address tokenHolder, Address operator) {
+        return hashStorageKey(AionBuffer.allocate(1 + Address.LENGTH + Address.LENGTH)
+                .putByte(prefix)
+                .putAddress(tokenHolder)
+                .putAddress(operator)
+                .getArray());
+    }
+
+    private static byte[] getStorageKey(byte prefix, Address tokenHolder, int index) {
+        return hashStorageKey(AionBuffer.allocate(1 + Address.LENGTH + Integer.BYTES)
+                .putByte(prefix)
+                .putAddress(tokenHolder)
+                .putInt(index)
+                .getArray());
+    }
+
+    private static byte[] getStorageKey(byte prefix, byte[] hash, int index) {
+        return hashStorageKey(AionBuffer.allocate(1 + HASH_LENGTH + Integer.BYTES)
+                .putByte(prefix)
+                .put(hash)
+                .putInt(index)
+                .getArray());
+    }
+
+    private static byte[] hashStorageKey(byte[] keyData) {
+        byte[] key = Blockchain.blake2b(keyData);
+        key[0] = keyData[0];
+        return key;
+    }
+
+    /**
+     * Every storage access of the contract goes through getStorage and putStorage,
+     * which use the storage cache instead of the blockchain while one is open.
+     */
+    private static byte[] getStorage(byte[] key) {
+        return storageCache != null ? storageCache.get(key) : Blockchain.getStorage(key);
+    }
+
+    private static void putStorage(byte[] key, byte[] value) {
+        if (storageCache != null) {
+            storageCache.put(key, value);
+        } else {
+            Blockchain.putStorage(key, value);
+        }
+    }
+
+    /**
+     * @return the storage cache which was open before, to be given back to closeStorageCache
+     */
+    private static StorageCache openStorageCache() {
+        StorageCache previousCache = storageCache;
+        storageCache = new StorageCache();
+        return previousCache;
+    }
+
+    private static void closeStorageCache(StorageCache previousCache) {
+        storageCache.flush();
+        storageCache = previousCache;
+    }
+
+    /**
+     * Write-back cache of storage records, for callables running many operations on the same holders:
+     * each key is read from the blockchain at most once and each changed key is written once, on flush.
+     * Records are handed out as they are cached, a record changed in place must be put back.
+     */
+    private static class StorageCache {
+        private byte[][] keys = new byte[32][];
+        private byte[][] records = new byte[32][];
+        private boolean[] changed = new boolean[32];
+        private int size;
+
+        private byte[] get(byte[] key) {
+            int slot = findSlot(key);
+            if (keys[slot] != null) {
+                return records[slot];
+            }
+            byte[] record = Blockchain.getStorage(key);
+            add(slot, key, record, false);
+            return record;
+        }
+
+        private void put(byte[] key, byte[] record) {
+            int slot = findSlot(key);
+            if (keys[slot] != null) {
+                records[slot] = record;
+                changed[slot] = true;
+            } else {
+                add(slot, key, record, true);
+            }
+        }
+
+        private void flush() {
+            for (int slot = 0; slot < keys.length; slot++) {
+                if (changed[slot]) {
+                    Blockchain.putStorage(keys[slot], records[slot]);
+                    changed[slot] = false;
                 }
-                walker++;
             }
-            return false;
         }
-//
-//        private byte[] getData() {
-//            return this.currentTokenHolderInformation;
-//        }
+
+        /**
+         * Write the changed records and forget every record, before other code may change storage.
+         */
+        private void invalidate() {
+            flush();
+            keys = new byte[keys.length][];
+            records = new byte[keys.length][];
+            size = 0;
+        }
+
+        /**
+         * Open addressing with linear probing, keys are hashes already so their first bytes after the prefix spread well.
+         *
+         * @return the slot of the key, or the empty slot it would go in
+         */
+        private int findSlot(byte[] key) {
+            int mask = keys.length - 1;
+            int slot = ((key[1] & 0xFF) << 8 | (key[2] & 0xFF)) & mask;
+            while (keys[slot] != null && !Arrays.equals(keys[slot], key)) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        private void add(int slot, byte[] key, byte[] record, boolean isChanged) {
+            keys[slot] = key;
+            records[slot] = record;
+            changed[slot] = isChanged;
+            size++;
+            if (size * 2 > keys.length) {
+                byte[][] oldKeys = keys;
+                byte[][] oldRecords = records;
+                boolean[] oldChanged = changed;
+                keys = new byte[oldKeys.length * 2][];
+                records = new byte[oldKeys.length * 2][];
+                changed = new boolean[oldKeys.length * 2];
+                for (int oldSlot = 0; oldSlot < oldKeys.length; oldSlot++) {
+                    if (oldKeys[oldSlot] != null) {
+                        int newSlot = findSlot(oldKeys[oldSlot]);
+                        keys[newSlot] = oldKeys[oldSlot];
+                        records[newSlot] = oldRecords[oldSlot];
+                        changed[newSlot] = oldChanged[oldSlot];
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Read the balance record without changing storage, a holder of the single-record layout is read from that record.
+     *
+     * @return the balance record of the token holder, or null if the holder has never held tokens
+     */
+    private static byte[] getBalanceInformation(Address tokenHolder) {
+        byte[] balanceInformation = getStorage(getStorageKey(BALANCE_PREFIX, tokenHolder));
+        if (isEmpty(balanceInformation)) {
+            byte[] legacyInformation = getStorage(tokenHolder.toByteArray());
+            return isEmpty(legacyInformation) ? null : encodeLegacyBalance(legacyInformation);
+        }
+        return balanceInformation;
+    }
+
+    /**
+     * Read the balance record before changing it, a holder of the single-record layout is migrated first.
+     *
+     * @return the balance record of the token holder, or null if the holder has never held tokens
+     */
+    private static byte[] getBalanceInformationForUpdate(byte[] balanceKey, Address tokenHolder) {
+        byte[] balanceInformation = getStorage(balanceKey);
+        if (isEmpty(balanceInformation)) {
+            byte[] legacyInformation = migrateLegacyTokenHolderInformation(tokenHolder);
+            return legacyInformation != null ? encodeLegacyBalance(legacyInformation) : null;
+        }
+        return balanceInformation;
+    }
+
+    /**
+     * Earlier versions of this contract kept the balance followed by the operators in one record under the holder address.
+     * Split such a record into the balance and operator records and clear the old one.
+     *
+     * @param tokenHolder
+     * @return the old record, or null if the holder has none
+     */
+    private static byte[] migrateLegacyTokenHolderInformation(Address tokenHolder) {
+        byte[] legacyInformation = getStorage(tokenHolder.toByteArray());
+        if (isEmpty(legacyInformation)) {
+            return null;
+        }
+        putStorage(getStorageKey(BALANCE_PREFIX, tokenHolder), encodeLegacyBalance(legacyInformation));
+        int operatorCount = getLegacyOperatorCount(legacyInformation);
+        for (int slot = 0; slot < operatorCount; slot++) {
+            int operatorStart = BIGINTEGER_LENGTH + slot * Address.LENGTH;
+            byte[] operator = Arrays.copyOfRange(legacyInformation, operatorStart, operatorStart + Address.LENGTH);
+            putStorage(getStorageKey(OPERATOR_SLOT_PREFIX, tokenHolder, slot), operator);
+            putStorage(getStorageKey(OPERATOR_PREFIX, tokenHolder, new Address(operator)), encodeOperatorSlot(slot, 0));
+        }
+        if (operatorCount > 0) {
+            putStorage(getStorageKey(OPERATORS_PREFIX, tokenHolder),
+                    encodeOperatorInformation(operatorCount, 0, getLegacyOperatorFilter(legacyInformation)));
+        }
+        putStorage(tokenHolder.toByteArray(), EMPTY_BYTES);
+        return legacyInformation;
+    }
+
+    private static byte[] encodeLegacyBalance(byte[] legacyInformation) {
+        return encodeBalance(new BigInteger(Arrays.copyOfRange(legacyInformation, 0, BIGINTEGER_LENGTH)), 0);
+    }
+
+    private static int getLegacyOperatorCount(byte[] legacyInformation) {
+        return (legacyInformation.length - BIGINTEGER_LENGTH) / Address.LENGTH;
+    }
+
+    private static long getLegacyOperatorFilter(byte[] legacyInformation) {
+        long operatorFilter = 0;
+        for (int slot = 0; slot < getLegacyOperatorCount(legacyInformation); slot++) {
+            int operatorStart = BIGINTEGER_LENGTH + slot * Address.LENGTH;
+            operatorFilter |= getOperatorFilterBits(new Address(Arrays.copyOfRange(legacyInformation, operatorStart, operatorStart + Address.LENGTH)));
+        }
+        return operatorFilter;
     }
 
-    private static void updateBalance(BigInteger newAmount, byte[] tokenHolderInfo, Address tokenHolder) {
-        byte[] operatorInfo = Arrays.copyOfRange(tokenHolderInfo, BIGINTEGER_LENGTH, tokenHolderInfo.length);
-        Blockchain.putStorage(tokenHolder.toByteArray(), AionBuffer.allocate(BIGINTEGER_LENGTH + operatorInfo.length)
-                                                            .put32ByteInt(newAmount)
-                                                            .put(operatorInfo)
-                                                            .getArray());
+    private static byte[] encodeOperatorInformation(int operatorCount, int authorizationEpoch, long operatorFilter) {
+        return AionBuffer.allocate(OPERATOR_INFORMATION_LENGTH).putInt(operatorCount).putInt(authorizationEpoch).putLong(operatorFilter).getArray();
+    }
+
+    /**
+     * Addresses are hashes already, the Bloom filter bits of an operator are taken from its last bytes.
+     */
+    private static long getOperatorFilterBits(Address operator) {
+        byte[] operatorBytes = operator.toByteArray();
+        long operatorBits = 0;
+        for (int i = 0; i < OPERATOR_FILTER_HASHES; i++) {
+            operatorBits |= 1L << (operatorBytes[Address.LENGTH - 1 - i] & (Long.SIZE - 1));
+        }
+        return operatorBits;
+    }
+
+    private static byte[] encodeOperatorSlot(int slot, int authorizationEpoch) {
+        return AionBuffer.allocate(Integer.BYTES + Integer.BYTES).putInt(slot).putInt(authorizationEpoch).getArray();
+    }
+
+    /**
+     * Records are cleared by writing an empty value, so an empty value reads the same as a missing one.
+     */
+    private static boolean isEmpty(byte[] information) {
+        return information == null || information.length == 0;
     }
 
 
     /********************************************Transactions*********************************************/
     @Callable
     public static void send(Address to, byte[] amount, byte[] userData) {
-        doSend(Blockchain.getCaller(), Blockchain.getCaller(), to, new BigInteger(amount), userData, new byte[0], true);
+        doSend(Blockchain.getCaller(), Blockchain.getCaller(), to, new BigInteger(amount), userData, EMPTY_BYTES, true);
     }
 
     @Callable
     public static void operatorSend(Address from, Address to, byte[] amount, byte[] userData, byte[] operatorData) {
         Blockchain.require(isOperatorFor(Blockchain.getCaller(),from));
-        doSend(Blockchain.getCaller(), Blockchain.getCaller(), to, new BigInteger(amount), userData, operatorData, true);
+        doSend(Blockchain.getCaller(), from, to, new BigInteger(amount), userData, operatorData, true);
+    }
+
+    /**
+     * Send to many recipients with one debit of the sender.
+     * Every recipient still gets its own Sent event.
+     *
+     * @param to      recipients
+     * @param amounts amount for each recipient, in the same order
+     * @param userData
+     */
+    @Callable
+    public static void batchSend(Address[] to, byte[][] amounts, byte[] userData) {
+        doBatchSend(Blockchain.getCaller(), Blockchain.getCaller(), to, toAmounts(amounts), userData, EMPTY_BYTES, true);
+    }
+
+    @Callable
+    public static void operatorBatchSend(Address from, Address[] to, byte[][] amounts, byte[] userData, byte[] operatorData) {
+        Blockchain.require(isOperatorFor(Blockchain.getCaller(),from));
+        doBatchSend(Blockchain.getCaller(), from, to, toAmounts(amounts), userData, operatorData, true);
+    }
+
+    /**
+     * Batch send taking its transfers as one byte[] instead of ABI-encoded arrays:
+     * (recipient address, 32-byte amount) pairs, back to back.
+     *
+     * @param packedTransfers
+     */
+    @Callable
+    public static void sendPacked(byte[] packedTransfers) {
+        Blockchain.require(packedTransfers.length % (Address.LENGTH + BIGINTEGER_LENGTH) == 0);
+        int transferCount = packedTransfers.length / (Address.LENGTH + BIGINTEGER_LENGTH);
+        Address[] to = new Address[transferCount];
+        BigInteger[] amounts = new BigInteger[transferCount];
+        AionBuffer transfers = AionBuffer.wrap(packedTransfers);
+        for (int i = 0; i < transferCount; i++) {
+            to[i] = transfers.getAddress();
+            amounts[i] = transfers.get32ByteInt();
+        }
+        doBatchSend(Blockchain.getCaller(), Blockchain.getCaller(), to, amounts, EMPTY_BYTES, EMPTY_BYTES, true);
+    }
+
+    private static BigInteger[] toAmounts(byte[][] amounts) {
+        BigInteger[] values = new BigInteger[amounts.length];
+        for (int i = 0; i < amounts.length; i++) {
+            values[i] = new BigInteger(amounts[i]);
+        }
+        return values;
     }
 
     private static void doSend(Address operator, Address from, Address to, BigInteger amount, byte[] userData, byte[] operatorData, boolean preventLocking) {
-        Blockchain.require(amount.mod(BigInteger.valueOf(tokenGranularity)).equals(BigInteger.ZERO));
-        callSender(operator, from, to, amount, userData, operatorData);
-        Address zeroAddress = new Address(new byte[0]);
-        Blockchain.require(!to.equals(zeroAddress)); //forbid sending to 0x0 (=burning)
+        requireValidTransfer(to, amount);
+        callSender(getTokenHooks(from), operator, from, to, amount, userData, operatorData);
+
+        debitBalance(from, amount);
+        creditBalance(to, amount);
+        callRecipient(operator, from, to, amount, userData, operatorData, preventLocking);
+        ATSTokenContractEvents.Sent(operator, from, to, amount, userData, operatorData);
+    }
+
+    private static void doBatchSend(Address operator, Address from, Address[] to, BigInteger[] values, byte[] userData, byte[] operatorData, boolean preventLocking) {
+        Blockchain.require(to.length == values.length);
+        BigInteger totalAmount = BigInteger.ZERO;
+        byte fromHooks = getTokenHooks(from); //looked up once for the whole batch
+        for (int i = 0; i < to.length; i++) {
+            requireValidTransfer(to[i], values[i]);
+            callSender(fromHooks, operator, from, to[i], values[i], userData, operatorData);
+            totalAmount = totalAmount.add(values[i]);
+        }
+
+        debitBalance(from, totalAmount);
+        for (int i = 0; i < to.length; i++) {
+            creditBalance(to[i], values[i]);
+            callRecipient(operator, from, to[i], values[i], userData, operatorData, preventLocking);
+            ATSTokenContractEvents.Sent(operator, from, to[i], values[i], userData, operatorData);
+        }
+    }
+
+    private static void requireValidTransfer(Address to, BigInteger amount) {
+        Blockchain.require(amount.signum() > -1);
+        if (tokenGranularity > 1) { //every amount is a multiple of 1
+            Blockchain.require(amount.mod(BigInteger.valueOf(tokenGranularity)).signum() == 0);
+        }
+        Blockchain.require(!to.equals(ZERO_ADDRESS)); //forbid sending to 0x0 (=burning)
         Blockchain.require(!to.equals(Blockchain.getAddress())); //forbid sending to this contract
+    }
 
-        byte[] fromInfo = Blockchain.getStorage(from.toByteArray());
-        Blockchain.require(!Arrays.equals(fromInfo, null)); //revert tx if no info at all
-        AionBuffer fromInfoBuffer = AionBuffer.wrap(fromInfo);
-        BigInteger fromBalance = fromInfoBuffer.get32ByteInt();
-        Blockchain.require(fromBalance.compareTo(amount) > -1);
-        updateBalance(fromBalance.subtract(amount), fromInfo, from);
-
-        byte[] toInfo = Blockchain.getStorage(to.toByteArray());
-        if (Arrays.equals(toInfo, null)) { /*no info existed*/
-            Blockchain.putStorage(to.toByteArray(), AionBuffer.allocate(BIGINTEGER_LENGTH).put32ByteInt(amount).getArray());
-            callRecipient(operator, from, to, amount, userData, operatorData, preventLocking);
-            ATSTokenContractEvents.Sent(operator, from, to, amount, userData, operatorData);
+    /**
+     * Balances and amounts that fit in a long are handled without BigInteger arithmetic.
+     */
+    private static void debitBalance(Address from, BigInteger amount) {
+        byte[] fromKey = getStorageKey(BALANCE_PREFIX, from);
+        byte[] fromInfo = getBalanceInformationForUpdate(fromKey, from);
+        Blockchain.require(fromInfo != null); //revert tx if no info at all
+        settleDividends(from, fromInfo);
+        if (getBalanceFormat(fromInfo) == BALANCE_FORMAT_LONG && amount.bitLength() < Long.SIZE) {
+            long fromBalance = getLongBalance(fromInfo);
+            long value = amount.longValue();
+            Blockchain.require(fromBalance >= value);
+            putLongBalance(fromInfo, fromBalance - value);
+            putBalanceInformation(from, fromKey, fromInfo);
         } else {
-            AionBuffer toInfoBuffer = AionBuffer.wrap(toInfo);
-            BigInteger toBalance = toInfoBuffer.get32ByteInt();
-            updateBalance(toBalance.add(amount), toInfo, to);
-            callRecipient(operator, from, to, amount, userData, operatorData, preventLocking);
-            ATSTokenContractEvents.Sent(operator, from, to, amount, userData, operatorData);
+            BigInteger fromBalance = decodeBalance(fromInfo);
+            Blockchain.require(fromBalance.compareTo(amount) > -1);
+            updateBalance(from, fromKey, fromInfo, fromBalance.subtract(amount));
         }
     }
 
-    //ToDO: register to AIR
-    private static void callSender(Address operator, Address from, Address to, BigInteger amount, byte[] userData, byte[] operatorData) {
+    private static void creditBalance(Address to, BigInteger amount) {
+        byte[] toKey = getStorageKey(BALANCE_PREFIX, to);
+        byte[] toInfo = getBalanceInformationForUpdate(toKey, to);
+        settleDividends(to, toInfo);
+        if (toInfo == null) { /*no info existed*/
+            putStorage(toKey, encodeBalance(amount, 0));
+            return;
+        }
+        if (getBalanceFormat(toInfo) == BALANCE_FORMAT_LONG && amount.bitLength() < Long.SIZE) {
+            long toBalance = getLongBalance(toInfo);
+            long newBalance = toBalance + amount.longValue();
+            if (newBalance >= toBalance) { /*no overflow*/
+                putLongBalance(toInfo, newBalance);
+                putBalanceInformation(to, toKey, toInfo);
+                return;
+            }
+        }
+        updateBalance(to, toKey, toInfo, decodeBalance(toInfo).add(amount));
+    }
 
+    /*********************************************Token Hooks*********************************************/
+    /**
+     * Until the token is registered to AIR, the token contract keeps the hook registry itself:
+     * a contract calls this to receive tokensToSend and/or tokensReceived calls for its transfers.
+     * Only deployed contracts can register hooks, regular accounts have none.
+     *
+     * @param tokensSender    call tokensToSend before tokens leave the caller
+     * @param tokensRecipient call tokensReceived after tokens reach the caller
+     */
+    @Callable
+    public static void registerTokenHooks(boolean tokensSender, boolean tokensRecipient) {
+        Address account = Blockchain.getCaller();
+        byte hooks = getAccountType(account);
+        Blockchain.require(!isRegularAccount(hooks));
+        if (tokensSender) {
+            hooks |= TOKENS_SENDER_HOOK;
+        }
+        if (tokensRecipient) {
+            hooks |= TOKENS_RECIPIENT_HOOK;
+        }
+        putStorage(getStorageKey(TOKEN_HOOKS_PREFIX, account), new byte[]{hooks});
+    }
+
+    /**
+     * @param fromHooks hook flags of the holder, from getTokenHooks
+     */
+    private static void callSender(byte fromHooks, Address operator, Address from, Address to, BigInteger amount, byte[] userData, byte[] operatorData) {
+        if ((fromHooks & TOKENS_SENDER_HOOK) != 0) {
+            callTokenHook(from, "tokensToSend", operator, from, to, amount, userData, operatorData);
+        }
     }
 
     private static void callRecipient(Address operator, Address from, Address to, BigInteger amount, byte[] userData, byte[] operatorData, boolean preventLocking) {
+        byte hooks = getTokenHooks(to);
+        if ((hooks & TOKENS_RECIPIENT_HOOK) != 0) {
+            callTokenHook(to, "tokensReceived", operator, from, to, amount, userData, operatorData);
+        } else if (preventLocking) {
+            Blockchain.require(isRegularAccount(hooks)); //a contract without tokensReceived would lock the tokens
+        }
+    }
+
+    private static void callTokenHook(Address hookAccount, String hookMethod, Address operator, Address from, Address to, BigInteger amount, byte[] userData, byte[] operatorData) {
+        byte[] hookData = new ABIStreamingEncoder()
+                .encodeOneString(hookMethod)
+                .encodeOneAddress(operator)
+                .encodeOneAddress(from)
+                .encodeOneAddress(to)
+                .encodeOneByteArray(amount.toByteArray())
+                .encodeOneByteArray(userData)
+                .encodeOneByteArray(operatorData)
+                .toBytes();
+        StorageCache openCache = storageCache;
+        if (openCache != null) { //the hook may call this contract, which must see and make changes in storage
+            openCache.invalidate();
+            storageCache = null;
+        }
+        Blockchain.require(Blockchain.call(hookAccount, BigInteger.ZERO, hookData, Blockchain.getRemainingEnergy()).isSuccess());
+        storageCache = openCache;
+    }
+
+    private static boolean isRegularAccount(byte hooks) {
+        return (hooks & CONTRACT_ACCOUNT) == 0;
+    }
+
+    /**
+     * Only contracts can register hooks, so an address without code is told to have none by its code size alone,
+     * without reading storage: transfers between regular accounts cost a code size lookup per account
+     * and never make a cross-contract call. Nothing is cached for such an address, as a contract may be deployed there later.
+     * The hooks of a contract are looked up once and cached, including "contract, no hook".
+     *
+     * @return the hook flags of the account
+     */
+    private static byte getTokenHooks(Address account) {
+        byte hooks = getAccountType(account);
+        if (isRegularAccount(hooks)) {
+            return hooks;
+        }
+        byte[] hooksKey = getStorageKey(TOKEN_HOOKS_PREFIX, account);
+        byte[] hooksInformation = getStorage(hooksKey);
+        if (!isEmpty(hooksInformation)) {
+            return hooksInformation[0];
+        }
+        putStorage(hooksKey, new byte[]{hooks});
+        return hooks;
+    }
+
+    private static byte getAccountType(Address account) {
+        return Blockchain.getCodeSize(account) > 0 ? (byte) (TOKEN_HOOKS_CACHED | CONTRACT_ACCOUNT) : TOKEN_HOOKS_CACHED;
+    }
+
+    /*********************************************Checkpoints*********************************************/
+    /**
+     * Keep the balance history of the caller from now on, so that getBalanceOfAt can answer for later blocks.
+     */
+    @Callable
+    public static void enableBalanceCheckpoints() {
+        Address tokenHolder = Blockchain.getCaller();
+        byte[] balanceKey = getStorageKey(BALANCE_PREFIX, tokenHolder);
+        byte[] balanceInformation = getBalanceInformationForUpdate(balanceKey, tokenHolder);
+        if (balanceInformation == null) {
+            putBalanceInformation(tokenHolder, balanceKey, encodeBalance(BigInteger.ZERO, BALANCE_CHECKPOINTS_FLAG));
+        } else if ((getBalanceFlags(balanceInformation) & BALANCE_CHECKPOINTS_FLAG) == 0) {
+            putBalanceInformation(tokenHolder, balanceKey,
+                    encodeBalance(decodeBalance(balanceInformation), getBalanceFlags(balanceInformation) | BALANCE_CHECKPOINTS_FLAG));
+        }
+    }
+
+    /**
+     * Balance of a holder at the end of a block, for holders who enabled checkpoints before that block.
+     *
+     * @param tokenHolder
+     * @param blockNumber
+     * @return
+     */
+    @Callable
+    public static String getBalanceOfAt(Address tokenHolder, long blockNumber) {
+        return new BigInteger(findCheckpoint(tokenHolder, blockNumber)).toString();
+    }
+
+    /**
+     * Total supply at the end of a block, in the same form as getTokenTotalSupply.
+     *
+     * @param blockNumber
+     * @return
+     */
+    @Callable
+    public static byte[] getTotalSupplyAt(long blockNumber) {
+        return new BigInteger(findCheckpoint(Blockchain.getAddress(), blockNumber)).toByteArray();
+    }
+
+    /**
+     * Checkpoints of a holder are (block number, 32-byte balance) records in block order, one per block at most.
+     * The checkpoints record of the holder holds their count and the block of the last one.
+     * The total supply series is kept the same way under the address of this contract, which can not hold tokens.
+     *
+     * @param owner   token holder, or this contract for the total supply
+     * @param balance 32-byte balance
+     */
+    private static void writeCheckpoint(Address owner, byte[] balance) {
+        byte[] checkpointsKey = getStorageKey(CHECKPOINTS_PREFIX, owner);
+        byte[] checkpoints = getStorage(checkpointsKey);
+        int count = 0;
+        long lastBlockNumber = -1;
+        if (!isEmpty(checkpoints)) {
+            AionBuffer checkpointsBuffer = AionBuffer.wrap(checkpoints);
+            count = checkpointsBuffer.getInt();
+            lastBlockNumber = checkpointsBuffer.getLong();
+        }
+        long blockNumber = Blockchain.getBlockNumber();
+        int index = blockNumber == lastBlockNumber ? count - 1 : count;
+        putStorage(getStorageKey(CHECKPOINT_PREFIX, owner, index),
+                AionBuffer.allocate(CHECKPOINT_LENGTH).putLong(blockNumber).put(balance).getArray());
+        if (index == count) {
+            putStorage(checkpointsKey, AionBuffer.allocate(Integer.BYTES + Long.BYTES).putInt(count + 1).putLong(blockNumber).getArray());
+        }
+    }
+
+    /**
+     * Binary search of the last checkpoint at or before the block.
+     *
+     * @return 32-byte balance of the checkpoint, reverts if there is none
+     */
+    private static byte[] findCheckpoint(Address owner, long blockNumber) {
+        byte[] checkpoints = getStorage(getStorageKey(CHECKPOINTS_PREFIX, owner));
+        Blockchain.require(!isEmpty(checkpoints));
+        int low = 0;
+        int high = AionBuffer.wrap(checkpoints).getInt() - 1;
+        byte[] found = null;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            byte[] checkpoint = getStorage(getStorageKey(CHECKPOINT_PREFIX, owner, middle));
+            if (AionBuffer.wrap(checkpoint).getLong() <= blockNumber) {
+                found = checkpoint;
+                low = middle + 1;
+            } else {
+                high = middle - 1;
+            }
+        }
+        Blockchain.require(found != null); //no history before the first checkpoint
+        return Arrays.copyOfRange(found, Long.BYTES, CHECKPOINT_LENGTH);
+    }
+
+
+    /**********************************************Dividends**********************************************/
+    /**
+     * Distribute the value of the call to all token holders, pro rata to their balance.
+     * Only a global dividends-per-token index moves, so the cost does not depend on the number of holders.
+     * The index is scaled by 2^128, what the scaling rounds away stays in the contract.
+     */
+    @Callable
+    public static void depositDividends() {
+        BigInteger value = Blockchain.getValue();
+        Blockchain.require(value.signum() > 0);
+        dividendsPerToken = dividendsPerToken.add(value.shiftLeft(DIVIDENDS_PER_TOKEN_SHIFT).divide(tokenTotalSupply));
+        ATSTokenContractEvents.DividendsDeposited(Blockchain.getCaller(), value);
+    }
+
+    /**
+     * Transfer the dividends owed to the caller.
+     */
+    @Callable
+    public static void claimDividends() {
+        Address tokenHolder = Blockchain.getCaller();
+        settleDividends(tokenHolder, getBalanceInformation(tokenHolder));
+        byte[] dividendsKey = getStorageKey(DIVIDENDS_PREFIX, tokenHolder);
+        BigInteger owed = getOwedDividends(getStorage(dividendsKey), null);
+        if (owed.signum() > 0) {
+            putStorage(dividendsKey, encodeDividends(dividendsPerToken, BigInteger.ZERO));
+            Blockchain.require(Blockchain.call(tokenHolder, owed, EMPTY_BYTES, Blockchain.getRemainingEnergy()).isSuccess());
+            ATSTokenContractEvents.DividendsClaimed(tokenHolder, owed);
+        }
+    }
+
+    /**
+     * @param tokenHolder
+     * @return dividends the holder can claim, as BigInteger.toByteArray()
+     */
+    @Callable
+    public static byte[] getDividendsOf(Address tokenHolder) {
+        return getOwedDividends(getStorage(getStorageKey(DIVIDENDS_PREFIX, tokenHolder)), getBalanceInformation(tokenHolder))
+                .toByteArray();
+    }
 
+    /**
+     * Add what the holder earned since its last settlement to what it is owed, for the balance it held meanwhile.
+     * Must run before every balance change, including the first credit of a new holder,
+     * so that the holder record always knows which index its current balance starts from.
+     *
+     * @param tokenHolder
+     * @param balanceInformation balance record before the change, or null if there is none
+     */
+    private static void settleDividends(Address tokenHolder, byte[] balanceInformation) {
+        if (dividendsPerToken.signum() == 0) { /*nothing was ever deposited*/
+            return;
+        }
+        byte[] dividendsKey = getStorageKey(DIVIDENDS_PREFIX, tokenHolder);
+        byte[] dividends = getStorage(dividendsKey);
+        if (!isEmpty(dividends) && AionBuffer.wrap(dividends).get32ByteInt().equals(dividendsPerToken)) { /*already settled*/
+            return;
+        }
+        putStorage(dividendsKey, encodeDividends(dividendsPerToken, getOwedDividends(dividends, balanceInformation)));
     }
 
-    private static void isRegularAccount(Address to) {
+    /**
+     * The dividends record of a holder is the index it was last settled at followed by what it is owed, 32 bytes each.
+     *
+     * @param dividends          dividends record, or null if the holder has none
+     * @param balanceInformation balance record held since the last settlement, or null if there is none
+     * @return owed dividends, including those not settled yet
+     */
+    private static BigInteger getOwedDividends(byte[] dividends, byte[] balanceInformation) {
+        BigInteger settledIndex = BigInteger.ZERO;
+        BigInteger owed = BigInteger.ZERO;
+        if (!isEmpty(dividends)) {
+            AionBuffer dividendsBuffer = AionBuffer.wrap(dividends);
+            settledIndex = dividendsBuffer.get32ByteInt();
+            owed = dividendsBuffer.get32ByteInt();
+        }
+        if (balanceInformation != null && !settledIndex.equals(dividendsPerToken)) {
+            owed = owed.add(decodeBalance(balanceInformation)
+                    .multiply(dividendsPerToken.subtract(settledIndex))
+                    .shiftRight(DIVIDENDS_PER_TOKEN_SHIFT));
+        }
+        return owed;
+    }
 
+    private static byte[] encodeDividends(BigInteger settledIndex, BigInteger owed) {
+        return AionBuffer.allocate(2 * BIGINTEGER_LENGTH)
+                .put32ByteInt(settledIndex)
+                .put32ByteInt(owed)
+                .getArray();
+    }
+
+
+    /***********************************************Execute***********************************************/
+    /**
+     * Run a sequence of operations of the caller in one transaction, all of them or none.
+     * Storage is cached for the whole sequence: each record is read once and each changed record written once.
+     * Each operation is an operation byte followed by:
+     * - EXECUTE_SEND: recipient address, amount (32 bytes), user data length (int), user data,
+     * - EXECUTE_OPERATOR_SEND: holder address, recipient address, amount (32 bytes),
+     *   user data length (int), user data, operator data length (int), operator data,
+     * - EXECUTE_AUTHORIZE_OPERATOR or EXECUTE_REVOKE_OPERATOR: operator address.
+     *
+     * @param packedOps operations, back to back
+     */
+    @Callable
+    public static void execute(byte[] packedOps) {
+        Address caller = Blockchain.getCaller();
+        StorageCache previousCache = openStorageCache();
+        AionBuffer ops = AionBuffer.wrap(packedOps);
+        while (ops.getPosition() < ops.getLimit()) {
+            byte operation = ops.getByte();
+            if (operation == EXECUTE_SEND) {
+                Address to = ops.getAddress();
+                BigInteger amount = ops.get32ByteInt();
+                doSend(caller, caller, to, amount, getLengthPrefixedBytes(ops), EMPTY_BYTES, true);
+            } else if (operation == EXECUTE_OPERATOR_SEND) {
+                Address from = ops.getAddress();
+                Address to = ops.getAddress();
+                BigInteger amount = ops.get32ByteInt();
+                byte[] userData = getLengthPrefixedBytes(ops);
+                byte[] operatorData = getLengthPrefixedBytes(ops);
+                Blockchain.require(isOperatorFor(caller, from));
+                doSend(caller, from, to, amount, userData, operatorData, true);
+            } else if (operation == EXECUTE_AUTHORIZE_OPERATOR) {
+                doAuthorizeOperator(caller, ops.getAddress());
+            } else {
+                Blockchain.require(operation == EXECUTE_REVOKE_OPERATOR);
+                doRevokeOperator(caller, ops.getAddress());
+            }
+        }
+        closeStorageCache(previousCache);
+    }
+
+    private static byte[] getLengthPrefixedBytes(AionBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+
+    /************************************************Relay************************************************/
+    /**
+     * Run operations signed by token holders, so that a relayer can submit many holders' sends and
+     * operator changes in one transaction. Each signed operation is:
+     * public key (32 bytes), signature (64 bytes), then the signed part:
+     * - operation (1 byte) and nonce (long), the nonce being the current one of the holder,
+     * - RELAY_SEND: recipient address, amount (32 bytes), user data length (int), user data,
+     * - RELAY_AUTHORIZE_OPERATOR or RELAY_REVOKE_OPERATOR: operator address.
+     * The signature covers the address of this contract followed by the signed part.
+     * The holder is the Aion address of the public key. The whole batch reverts if any operation fails.
+     * Storage is cached for the whole batch, as in execute.
+     *
+     * @param packedSignedOps signed operations, back to back
+     */
+    @Callable
+    public static void relayBatch(byte[] packedSignedOps) {
+        StorageCache previousCache = openStorageCache();
+        AionBuffer signedOps = AionBuffer.wrap(packedSignedOps);
+        while (signedOps.getPosition() < signedOps.getLimit()) {
+            byte[] publicKey = new byte[PUBLIC_KEY_LENGTH];
+            byte[] signature = new byte[SIGNATURE_LENGTH];
+            signedOps.get(publicKey).get(signature);
+            int signedStart = signedOps.getPosition();
+
+            byte operation = signedOps.getByte();
+            long nonce = signedOps.getLong();
+            Address target = signedOps.getAddress();
+            BigInteger amount = null;
+            byte[] userData = null;
+            if (operation == RELAY_SEND) {
+                amount = signedOps.get32ByteInt();
+                userData = getLengthPrefixedBytes(signedOps);
+            }
+            byte[] message = AionBuffer.allocate(Address.LENGTH + signedOps.getPosition() - signedStart)
+                    .putAddress(Blockchain.getAddress())
+                    .put(Arrays.copyOfRange(packedSignedOps, signedStart, signedOps.getPosition()))
+                    .getArray();
+            Blockchain.require(Blockchain.edVerify(message, signature, publicKey));
+
+            Address tokenHolder = getAddressOfPublicKey(publicKey);
+            useNonce(tokenHolder, nonce);
+            if (operation == RELAY_SEND) {
+                doSend(tokenHolder, tokenHolder, target, amount, userData, EMPTY_BYTES, true);
+            } else if (operation == RELAY_AUTHORIZE_OPERATOR) {
+                doAuthorizeOperator(tokenHolder, target);
+            } else {
+                Blockchain.require(operation == RELAY_REVOKE_OPERATOR);
+                doRevokeOperator(tokenHolder, target);
+            }
+        }
+        closeStorageCache(previousCache);
+    }
+
+    /**
+     * @param tokenHolder
+     * @return the nonce the next signed operation of the holder must carry
+     */
+    @Callable
+    public static long getNonceOf(Address tokenHolder) {
+        byte[] nonce = getStorage(getStorageKey(NONCE_PREFIX, tokenHolder));
+        return isEmpty(nonce) ? 0 : AionBuffer.wrap(nonce).getLong();
+    }
+
+    private static void useNonce(Address tokenHolder, long nonce) {
+        Blockchain.require(getNonceOf(tokenHolder) == nonce);
+        putStorage(getStorageKey(NONCE_PREFIX, tokenHolder), AionBuffer.allocate(Long.BYTES).putLong(nonce + 1).getArray());
+    }
+
+    /**
+     * Aion account addresses are 0xa0 followed by the last 31 bytes of the blake2b hash of the public key.
+     */
+    private static Address getAddressOfPublicKey(byte[] publicKey) {
+        byte[] address = Blockchain.blake2b(publicKey);
+        address[0] = (byte) 0xa0;
+        return new Address(address);
+    }
+
+
+    /***********************************************Airdrop***********************************************/
+    /**
+     * Start an airdrop funded by the token creator's balance.
+     * Each leaf of the tree is blake2b(index, recipient address, 32-byte amount),
+     * each node is blake2b of its two children, the smaller one first.
+     * Starting a new airdrop replaces the previous one.
+     *
+     * @param merkleRoot root of the airdrop tree
+     */
+    @Callable
+    public static void startAirdrop(byte[] merkleRoot) {
+        Blockchain.require(Blockchain.getCaller().equals(tokenCreator));
+        Blockchain.require(merkleRoot.length == HASH_LENGTH);
+        airdropMerkleRoot = merkleRoot;
+        ATSTokenContractEvents.AirdropStarted(tokenCreator, merkleRoot);
+    }
+
+    /**
+     * Claim the caller's leaf of the current airdrop. The tokens are sent from the token creator.
+     *
+     * @param index  index of the leaf
+     * @param amount amount of the leaf
+     * @param proof  sibling hashes from the leaf up to the root
+     */
+    @Callable
+    public static void claimAirdrop(int index, byte[] amount, byte[][] proof) {
+        Blockchain.require(airdropMerkleRoot != null && index >= 0);
+        Address recipient = Blockchain.getCaller();
+        byte[] node = Blockchain.blake2b(AionBuffer.allocate(Integer.BYTES + Address.LENGTH + BIGINTEGER_LENGTH)
+                .putInt(index)
+                .putAddress(recipient)
+                .put32ByteInt(new BigInteger(amount))
+                .getArray());
+        for (byte[] sibling : proof) {
+            node = hashNodes(node, sibling);
+        }
+        Blockchain.require(Arrays.equals(node, airdropMerkleRoot));
+
+        byte[] claimedKey = getStorageKey(AIRDROP_CLAIMED_PREFIX, airdropMerkleRoot, index / Byte.SIZE / HASH_LENGTH);
+        byte[] claimed = getStorage(claimedKey);
+        if (isEmpty(claimed)) {
+            claimed = new byte[HASH_LENGTH];
+        }
+        int bit = index % (Byte.SIZE * HASH_LENGTH);
+        Blockchain.require((claimed[bit / Byte.SIZE] & (1 << (bit % Byte.SIZE))) == 0);
+        claimed[bit / Byte.SIZE] |= (byte) (1 << (bit % Byte.SIZE));
+        putStorage(claimedKey, claimed);
+
+        doSend(tokenCreator, tokenCreator, recipient, new BigInteger(amount), EMPTY_BYTES, EMPTY_BYTES, true);
+    }
+
+    @Callable
+    public static boolean isAirdropClaimed(int index) {
+        if (airdropMerkleRoot == null || index < 0) {
+            return false;
+        }
+        byte[] claimed = getStorage(getStorageKey(AIRDROP_CLAIMED_PREFIX, airdropMerkleRoot, index / Byte.SIZE / HASH_LENGTH));
+        int bit = index % (Byte.SIZE * HASH_LENGTH);
+        return !isEmpty(claimed) && (claimed[bit / Byte.SIZE] & (1 << (bit % Byte.SIZE))) != 0;
+    }
+
+    private static byte[] hashNodes(byte[] left, byte[] right) {
+        Blockchain.require(right.length == HASH_LENGTH);
+        boolean leftFirst = true;
+        for (int i = 0; i < HASH_LENGTH; i++) {
+            if (left[i] != right[i]) {
+                leftFirst = (left[i] & 0xFF) < (right[i] & 0xFF);
+                break;
+            }
+        }
+        return Blockchain.blake2b(leftFirst
+                ? AionBuffer.allocate(2 * HASH_LENGTH).put(left).put(right).getArray()
+                : AionBuffer.allocate(2 * HASH_LENGTH).put(right).put(left).getArray());
     }
 
     /************************************************Events***********************************************/
     private static class ATSTokenContractEvents {
+        private static final byte[] ATS_TOKEN_CREATED_TOPIC = "ATSTokenCreated".getBytes();
+        private static final byte[] SENT_TOPIC = "Sent".getBytes();
+        private static final byte[] BURNED_TOPIC = "Burned".getBytes();
+        private static final byte[] AUTHORIZED_OPERATOR_TOPIC = "AuthorizedOperator".getBytes();
+        private static final byte[] REVOKED_OPERATOR_TOPIC = "RevokedOperator".getBytes();
+        private static final byte[] REVOKED_ALL_OPERATORS_TOPIC = "RevokedAllOperators".getBytes();
+        private static final byte[] AIRDROP_STARTED_TOPIC = "AirdropStarted".getBytes();
+        private static final byte[] DIVIDENDS_DEPOSITED_TOPIC = "DividendsDeposited".getBytes();
+        private static final byte[] DIVIDENDS_CLAIMED_TOPIC = "DividendsClaimed".getBytes();
 
-        private static void ATSTokenCreated(BigInteger totalSupply, Address creator) {
-            Blockchain.log("ATSTokenCreated".getBytes(),
-                    totalSupply.toByteArray(),
+        /**
+         * The total supply is a 32-byte amount, so that it survives the padding of topics.
+         * Genesis allocations are packed as (address, 32-byte amount) pairs, empty if there is none.
+         *
+         * @param totalSupply
+         * @param creator
+         * @param genesisAllocations
+         */
+        private static void ATSTokenCreated(BigInteger totalSupply, Address creator, byte[] genesisAllocations) {
+            Blockchain.log(ATS_TOKEN_CREATED_TOPIC,
+                    AionBuffer.allocate(BIGINTEGER_LENGTH).put32ByteInt(totalSupply).getArray(),
                     creator.toByteArray(),
-                    new byte[0]);
+                    genesisAllocations);
         }
 
         /**
@@ -318,7 +1603,7 @@ public class ATSTokenContract {
                     .put(operatorData)
                     .getArray();
 
-            Blockchain.log("Sent".getBytes(),
+            Blockchain.log(SENT_TOPIC,
                     operator.toByteArray(),
                     from.toByteArray(),
                     to.toByteArray(),
@@ -345,27 +1630,49 @@ public class ATSTokenContract {
                     .put(operatorData)
                     .getArray();
 
-            Blockchain.log("Burned".getBytes(),
+            Blockchain.log(BURNED_TOPIC,
                     operator.toByteArray(),
                     from.toByteArray(),
                     data);
         }
 
         private static void AuthorizedOperator(Address operator, Address tokenHolder) {
-            Blockchain.log("AuthorizedOperator".getBytes(),
+            Blockchain.log(AUTHORIZED_OPERATOR_TOPIC,
                     operator.toByteArray(),
                     tokenHolder.toByteArray(),
-                    new byte[0]);
+                    EMPTY_BYTES);
         }
 
         private static void RevokedOperator(Address operator, Address tokenHolder) {
-            Blockchain.log("RevokedOperator".getBytes(),
+            Blockchain.log(REVOKED_OPERATOR_TOPIC,
                     operator.toByteArray(),
                     tokenHolder.toByteArray(),
-                    new byte[0]);
+                    EMPTY_BYTES);
         }
 
-    }
-}
+        private static void RevokedAllOperators(Address tokenHolder) {
+            Blockchain.log(REVOKED_ALL_OPERATORS_TOPIC,
+                    tokenHolder.toByteArray(),
+                    EMPTY_BYTES);
+        }
 
+        private static void AirdropStarted(Address creator, byte[] merkleRoot) {
+            Blockchain.log(AIRDROP_STARTED_TOPIC,
+                    creator.toByteArray(),
+                    merkleRoot);
+        }
+
+        private static void DividendsDeposited(Address depositor, BigInteger amount) {
+            Blockchain.log(DIVIDENDS_DEPOSITED_TOPIC,
+                    depositor.toByteArray(),
+                    AionBuffer.allocate(BIGINTEGER_LENGTH).put32ByteInt(amount).getArray());
+        }
 
+        private static void DividendsClaimed(Address tokenHolder, BigInteger amount) {
+            Blockchain.log(DIVIDENDS_CLAIMED_TOPIC,
+                    tokenHolder.toByteArray(),
+                    AionBuffer.allocate(BIGINTEGER_LENGTH).put32ByteInt(amount).getArray());
+        }
+
+    }
+}
\ No newline at end of file
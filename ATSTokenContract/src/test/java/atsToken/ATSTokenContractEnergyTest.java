@@ -0,0 +1,321 @@
+package atsToken;
+
+import avm.Address;
+import org.aion.avm.tooling.AvmRule;
+import org.aion.avm.tooling.hash.HashUtils;
+import org.aion.avm.userlib.AionBuffer;
+import org.aion.avm.userlib.abi.ABIStreamingEncoder;
+import org.aion.kernel.AvmTransactionResult;
+import net.i2p.crypto.eddsa.EdDSAEngine;
+import net.i2p.crypto.eddsa.EdDSAPrivateKey;
+import net.i2p.crypto.eddsa.spec.EdDSANamedCurveTable;
+import net.i2p.crypto.eddsa.spec.EdDSAPrivateKeySpec;
+import org.junit.*;
+
+import java.io.*;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+/**
+ * Energy used by every callable, for holders with 0, 1 or 16 operators and for new or existing recipients
+ * (the send shapes also count the operator which runs operatorSend),
+ * checked against the baselines in energy-baselines.properties.
+ * A call fails when it uses more than its baseline plus the tolerance, -Denergy.tolerance (default 0.02 = 2%),
+ * or when it has no baseline.
+ * Run with -Denergy.record=true to write the energy used by every call as the new baselines.
+ */
+public class ATSTokenContractEnergyTest {
+    private static final String BASELINES_FILE = System.getProperty("energy.baselines", "src/test/resources/energy-baselines.properties");
+    private static final boolean RECORD = Boolean.getBoolean("energy.record");
+    private static final double TOLERANCE = Double.parseDouble(System.getProperty("energy.tolerance", "0.02"));
+    private static final int[] OPERATOR_COUNTS = {0, 1, 16};
+    private static final String[] BASELINES_HEADER = {
+            "# Energy used by each call of ATSTokenContractEnergyTest.",
+            "# Written by mvn test -Dtest=ATSTokenContractEnergyTest -Denergy.record=true, review changes like code.",
+            "# Every call of the suite needs a baseline here, a call without one fails the suite."};
+
+    private static Properties baselines = new Properties();
+    private static Map<String, Long> recordedEnergy = new TreeMap<>();
+
+    @Rule
+    public AvmRule avmRule = new AvmRule(true);
+
+    private Address deployer = avmRule.getPreminedAccount();
+    private Address contractAddress;
+    private int addressCount;
+
+    private BigInteger nAmp = BigInteger.valueOf(1_000_000_000_000_000_000L);
+    private byte[] tokenTotalSupply = BigInteger.valueOf(333_333_333_333_333_333L).multiply(nAmp).toByteArray();
+
+    @BeforeClass
+    public static void loadBaselines() throws IOException {
+        File baselinesFile = new File(BASELINES_FILE);
+        if (baselinesFile.exists()) {
+            try (Reader reader = new InputStreamReader(new FileInputStream(baselinesFile), StandardCharsets.UTF_8)) {
+                baselines.load(reader);
+            }
+        }
+    }
+
+    @AfterClass
+    public static void recordBaselines() throws IOException {
+        if (!RECORD) {
+            return;
+        }
+        try (PrintWriter writer = new PrintWriter(new OutputStreamWriter(new FileOutputStream(BASELINES_FILE), StandardCharsets.UTF_8))) {
+            for (String line : BASELINES_HEADER) {
+                writer.println(line);
+            }
+            for (Map.Entry<String, Long> energy : recordedEnergy.entrySet()) {
+                writer.println(energy.getKey() + "=" + energy.getValue());
+            }
+        }
+    }
+
+    @Before
+    public void deployDapp() {
+        byte[] data = new ABIStreamingEncoder().encodeOneString("JENNIJUJU")
+                .encodeOneString("J3N")
+                .encodeOneInteger(1)
+                .encodeOneByteArray(tokenTotalSupply)
+                .toBytes();
+        contractAddress = avmRule.deploy(deployer, BigInteger.ZERO, avmRule.getDappBytes(ATSTokenContract.class, data)).getDappAddress();
+    }
+
+    @Test
+    public void testTokenInfoEnergy() {
+        checkEnergy("getTokenName", call(deployer, encoder("getTokenName")));
+        checkEnergy("getTokenSymbol", call(deployer, encoder("getTokenSymbol")));
+        checkEnergy("getTokenGranularity", call(deployer, encoder("getTokenGranularity")));
+        checkEnergy("getTokenTotalSupply", call(deployer, encoder("getTokenTotalSupply")));
+        checkEnergy("getTokenInfo", call(deployer, encoder("getTokenInfo")));
+        checkEnergy("getDefaultOperators", call(deployer, encoder("getDefaultOperators")));
+        checkEnergy("getTotalSupplyAt", call(deployer, encoder("getTotalSupplyAt").encodeOneLong(Long.MAX_VALUE)));
+    }
+
+    @Test
+    public void testBalanceEnergy() {
+        Address tokenHolder = newHolder(0);
+        Address[] tokenHolders = new Address[10];
+        for (int i = 0; i < tokenHolders.length; i++) {
+            tokenHolders[i] = i % 2 == 0 ? tokenHolder : newAddress(BigInteger.ZERO);
+        }
+        checkEnergy("getBalanceOf", call(deployer, encoder("getBalanceOf").encodeOneAddress(tokenHolder)));
+        checkEnergy("getBalanceOfBytes", call(deployer, encoder("getBalanceOfBytes").encodeOneAddress(tokenHolder)));
+        checkEnergy("getBalancesOf.holders-10", call(deployer, encoder("getBalancesOf").encodeOneAddressArray(tokenHolders)));
+        checkEnergy("migrateTokenHolder.operators-1", call(deployer, encoder("migrateTokenHolder").encodeOneAddress(newLegacyHolder())));
+        checkEnergy("getNonceOf", call(deployer, encoder("getNonceOf").encodeOneAddress(tokenHolder)));
+        checkEnergy("getDividendsOf", call(deployer, encoder("getDividendsOf").encodeOneAddress(tokenHolder)));
+    }
+
+    @Test
+    public void testSendEnergy() {
+        for (int operatorCount : OPERATOR_COUNTS) {
+            Address tokenHolder = newHolder(operatorCount);
+            Address operator = newAddress(nAmp);
+            call(tokenHolder, encoder("authorizeOperator").encodeOneAddress(operator));
+            Address existingRecipient = newHolder(0);
+            String shape = ".operators-" + (operatorCount + 1); //with the operator of operatorSend
+
+            checkEnergy("send" + shape + ".recipient-new", call(tokenHolder, send(newAddress(BigInteger.ZERO))));
+            checkEnergy("send" + shape + ".recipient-existing", call(tokenHolder, send(existingRecipient)));
+            checkEnergy("operatorSend" + shape + ".recipient-new", call(operator, operatorSend(tokenHolder, newAddress(BigInteger.ZERO))));
+            checkEnergy("operatorSend" + shape + ".recipient-existing", call(operator, operatorSend(tokenHolder, existingRecipient)));
+        }
+    }
+
+    /**
+     * Balances and amounts that fit in a long are updated without BigInteger arithmetic, which keeps such sends cheaper than those between larger balances.
+     */
+    @Test
+    public void testSendBalanceFormatEnergy() {
+        Address longHolder = newHolder(0);
+        Address bigIntegerHolder = newAddress(nAmp);
+        call(deployer, encoder("send").encodeOneAddress(bigIntegerHolder).encodeOneByteArray(BigInteger.TEN.pow(20).toByteArray()).encodeOneByteArray(new byte[0]));
+        Address longRecipient = newHolder(0);
+        Address bigIntegerRecipient = newAddress(BigInteger.ZERO);
+        call(deployer, encoder("send").encodeOneAddress(bigIntegerRecipient).encodeOneByteArray(BigInteger.TEN.pow(20).toByteArray()).encodeOneByteArray(new byte[0]));
+
+        long longEnergy = checkEnergy("send.balances-long", call(longHolder, send(longRecipient)));
+        long bigIntegerEnergy = checkEnergy("send.balances-big-integer", call(bigIntegerHolder, send(bigIntegerRecipient)));
+        Assert.assertTrue("send.balances-long used " + longEnergy + " energy, send.balances-big-integer " + bigIntegerEnergy,
+                longEnergy < bigIntegerEnergy);
+    }
+
+    @Test
+    public void testBatchSendEnergy() {
+        Address tokenHolder = newHolder(0);
+        Address operator = newAddress(nAmp);
+        call(tokenHolder, encoder("authorizeOperator").encodeOneAddress(operator));
+        Address[] recipients = new Address[10];
+        byte[][] amounts = new byte[recipients.length][];
+        AionBuffer packedTransfers = AionBuffer.allocate(recipients.length * (32 + 32));
+        for (int i = 0; i < recipients.length; i++) {
+            recipients[i] = newAddress(BigInteger.ZERO);
+            amounts[i] = BigInteger.ONE.toByteArray();
+            packedTransfers.putAddress(recipients[i]).put32ByteInt(BigInteger.ONE);
+        }
+
+        checkEnergy("batchSend.recipients-10-new", call(tokenHolder, encoder("batchSend")
+                .encodeOneAddressArray(recipients).encodeOne2DByteArray(amounts).encodeOneByteArray(new byte[0])));
+        checkEnergy("batchSend.recipients-10-existing", call(tokenHolder, encoder("batchSend")
+                .encodeOneAddressArray(recipients).encodeOne2DByteArray(amounts).encodeOneByteArray(new byte[0])));
+        checkEnergy("operatorBatchSend.recipients-10-existing", call(operator, encoder("operatorBatchSend").encodeOneAddress(tokenHolder)
+                .encodeOneAddressArray(recipients).encodeOne2DByteArray(amounts).encodeOneByteArray(new byte[0]).encodeOneByteArray(new byte[0])));
+        checkEnergy("sendPacked.recipients-10-existing", call(tokenHolder, encoder("sendPacked").encodeOneByteArray(packedTransfers.getArray())));
+
+        AionBuffer sends = AionBuffer.allocate(recipients.length * (1 + 32 + 32 + 4));
+        for (Address recipient : recipients) {
+            sends.putByte((byte) 0x01).putAddress(recipient).put32ByteInt(BigInteger.ONE).putInt(0);
+        }
+        checkEnergy("execute.sends-10-existing", call(tokenHolder, encoder("execute").encodeOneByteArray(sends.getArray())));
+    }
+
+    @Test
+    public void testOperatorEnergy() {
+        for (int operatorCount : OPERATOR_COUNTS) {
+            Address tokenHolder = newHolder(operatorCount);
+            Address operator = newAddress(BigInteger.ZERO);
+            Address[] operators = newAddresses(4);
+            String shape = ".operators-" + operatorCount;
+
+            checkEnergy("authorizeOperator" + shape, call(tokenHolder, encoder("authorizeOperator").encodeOneAddress(operator)));
+            checkEnergy("isOperatorFor" + shape + ".operator", call(deployer, encoder("isOperatorFor").encodeOneAddress(operator).encodeOneAddress(tokenHolder)));
+            checkEnergy("isOperatorFor" + shape + ".not-operator", call(deployer, encoder("isOperatorFor").encodeOneAddress(deployer).encodeOneAddress(tokenHolder)));
+            checkEnergy("revokeOperator" + shape, call(tokenHolder, encoder("revokeOperator").encodeOneAddress(operator)));
+            checkEnergy("authorizeOperators" + shape + ".operators-4", call(tokenHolder, encoder("authorizeOperators").encodeOneAddressArray(operators)));
+            checkEnergy("getOperatorCount" + shape, call(deployer, encoder("getOperatorCount").encodeOneAddress(tokenHolder)));
+            checkEnergy("getOperators" + shape + ".limit-16", call(deployer, encoder("getOperators").encodeOneAddress(tokenHolder).encodeOneInteger(0).encodeOneInteger(16)));
+            checkEnergy("revokeOperators" + shape + ".operators-4", call(tokenHolder, encoder("revokeOperators").encodeOneAddressArray(operators)));
+            checkEnergy("revokeAllOperators" + shape, call(tokenHolder, encoder("revokeAllOperators")));
+        }
+    }
+
+    @Test
+    public void testHolderOptionsEnergy() {
+        Address tokenHolder = newHolder(0);
+        //only contracts register hooks, this measures the call through one
+        Address hooksContract = avmRule.deploy(deployer, BigInteger.ZERO, avmRule.getDappBytes(TokenHooksContract.class, new byte[0])).getDappAddress();
+        checkEnergy("registerTokenHooks.contract", avmRule.call(deployer, hooksContract, BigInteger.ZERO,
+                encoder("registerTokenHooks").encodeOneAddress(contractAddress).encodeOneBoolean(false).encodeOneBoolean(true).toBytes()));
+        checkEnergy("enableBalanceCheckpoints", call(tokenHolder, encoder("enableBalanceCheckpoints")));
+        checkEnergy("send.checkpoints", call(tokenHolder, send(newHolder(0))));
+        checkEnergy("getBalanceOfAt", call(deployer, encoder("getBalanceOfAt").encodeOneAddress(tokenHolder).encodeOneLong(Long.MAX_VALUE)));
+
+        checkEnergy("depositDividends", avmRule.call(deployer, contractAddress, nAmp, encoder("depositDividends").toBytes()));
+        checkEnergy("send.dividends", call(tokenHolder, send(newHolder(0))));
+        checkEnergy("claimDividends", call(deployer, encoder("claimDividends")));
+    }
+
+    @Test
+    public void testAirdropEnergy() {
+        Address recipient = newAddress(nAmp);
+        BigInteger amount = BigInteger.valueOf(1000);
+        byte[] merkleRoot = HashUtils.blake2b(AionBuffer.allocate(4 + 32 + 32).putInt(0).putAddress(recipient).put32ByteInt(amount).getArray());
+
+        checkEnergy("startAirdrop", call(deployer, encoder("startAirdrop").encodeOneByteArray(merkleRoot)));
+        checkEnergy("claimAirdrop.proof-0", call(recipient, encoder("claimAirdrop").encodeOneInteger(0).encodeOneByteArray(amount.toByteArray()).encodeOne2DByteArray(new byte[0][])));
+        checkEnergy("isAirdropClaimed", call(deployer, encoder("isAirdropClaimed").encodeOneInteger(0)));
+    }
+
+    @Test
+    public void testRelayEnergy() throws Exception {
+        EdDSAPrivateKeySpec privateKey = new EdDSAPrivateKeySpec(HashUtils.blake2b("relay holder".getBytes()), EdDSANamedCurveTable.getByName(EdDSANamedCurveTable.ED_25519));
+        byte[] publicKey = privateKey.getA().toByteArray();
+        byte[] holderAddress = HashUtils.blake2b(publicKey);
+        holderAddress[0] = (byte) 0xa0;
+        call(deployer, send(new Address(holderAddress)));
+
+        byte[] operation = AionBuffer.allocate(1 + 8 + 32 + 32 + 4)
+                .putByte((byte) 0x01).putLong(0).putAddress(newAddress(BigInteger.ZERO)).put32ByteInt(BigInteger.ONE).putInt(0)
+                .getArray();
+        EdDSAEngine engine = new EdDSAEngine(MessageDigest.getInstance(privateKey.getParams().getHashAlgorithm()));
+        engine.initSign(new EdDSAPrivateKey(privateKey));
+        byte[] signature = engine.signOneShot(AionBuffer.allocate(32 + operation.length).putAddress(contractAddress).put(operation).getArray());
+        byte[] signedOperation = AionBuffer.allocate(32 + 64 + operation.length).put(publicKey).put(signature).put(operation).getArray();
+
+        checkEnergy("relayBatch.sends-1", call(deployer, encoder("relayBatch").encodeOneByteArray(signedOperation)));
+    }
+
+    /**
+     * A holder with tokens, energy to call and operatorCount operators.
+     */
+    private Address newHolder(int operatorCount) {
+        Address tokenHolder = newAddress(nAmp);
+        call(deployer, encoder("send").encodeOneAddress(tokenHolder).encodeOneByteArray(nAmp.toByteArray()).encodeOneByteArray(new byte[0]));
+        if (operatorCount > 0) {
+            call(tokenHolder, encoder("authorizeOperators").encodeOneAddressArray(newAddresses(operatorCount)));
+        }
+        return tokenHolder;
+    }
+
+    /**
+     * A holder in the single-record layout of the first version, its balance followed by one operator,
+     * written straight into the storage of the contract.
+     */
+    private Address newLegacyHolder() {
+        Address tokenHolder = newAddress(BigInteger.ZERO);
+        byte[] legacyInformation = AionBuffer.allocate(32 + Address.LENGTH).put32ByteInt(nAmp).putAddress(newAddresses(1)[0]).getArray();
+        avmRule.kernel.putStorage(org.aion.types.Address.wrap(contractAddress.toByteArray()), tokenHolder.toByteArray(), legacyInformation);
+        return tokenHolder;
+    }
+
+    /**
+     * Addresses are numbered rather than random, as the energy of some calls depends on the hashes of their storage keys.
+     */
+    private Address newAddress(BigInteger balance) {
+        byte[] address = HashUtils.blake2b(("energy " + addressCount++).getBytes(StandardCharsets.UTF_8));
+        address[0] = (byte) 0xa0;
+        avmRule.kernel.adjustBalance(org.aion.types.Address.wrap(address), balance);
+        return new Address(address);
+    }
+
+    private Address[] newAddresses(int count) {
+        Address[] addresses = new Address[count];
+        for (int i = 0; i < count; i++) {
+            addresses[i] = newAddress(BigInteger.ZERO);
+        }
+        return addresses;
+    }
+
+    private ABIStreamingEncoder send(Address recipient) {
+        return encoder("send").encodeOneAddress(recipient).encodeOneByteArray(BigInteger.TEN.toByteArray()).encodeOneByteArray(new byte[0]);
+    }
+
+    private ABIStreamingEncoder operatorSend(Address tokenHolder, Address recipient) {
+        return encoder("operatorSend").encodeOneAddress(tokenHolder).encodeOneAddress(recipient)
+                .encodeOneByteArray(BigInteger.TEN.toByteArray()).encodeOneByteArray(new byte[0]).encodeOneByteArray(new byte[0]);
+    }
+
+    private ABIStreamingEncoder encoder(String method) {
+        return new ABIStreamingEncoder().encodeOneString(method);
+    }
+
+    private AvmRule.ResultWrapper call(Address from, ABIStreamingEncoder encoder) {
+        AvmRule.ResultWrapper result = avmRule.call(from, contractAddress, BigInteger.ZERO, encoder.toBytes());
+        Assert.assertTrue(result.getReceiptStatus().isSuccess());
+        return result;
+    }
+
+    /**
+     * @return the energy used by the call
+     */
+    private long checkEnergy(String call, AvmRule.ResultWrapper result) {
+        Assert.assertTrue(call, result.getReceiptStatus().isSuccess());
+        long energyUsed = ((AvmTransactionResult) result.getTransactionResult()).getEnergyUsed();
+        recordedEnergy.put(call, energyUsed);
+        String baseline = baselines.getProperty(call);
+        if (RECORD) {
+            System.out.println("Energy " + call + " " + energyUsed);
+            return energyUsed;
+        }
+        Assert.assertNotNull(call + " used " + energyUsed + " energy and has no baseline, record it with -Denergy.record=true", baseline);
+        long maxEnergy = (long) (Long.parseLong(baseline) * (1 + TOLERANCE));
+        Assert.assertTrue(call + " used " + energyUsed + " energy, baseline " + baseline, energyUsed <= maxEnergy);
+        return energyUsed;
+    }
+}
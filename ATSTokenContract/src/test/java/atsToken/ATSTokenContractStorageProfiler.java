@@ -0,0 +1,208 @@
+package atsToken;
+
+import avm.Address;
+import org.aion.avm.tooling.AvmRule;
+import org.aion.avm.userlib.abi.ABIStreamingEncoder;
+import org.aion.kernel.TestingKernel;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * Contract storage used by token holders, per record type: number of records, bytes and a histogram of record sizes.
+ * The record type of a key is its first byte, the *_PREFIX constants of ATSTokenContract mirrored in RECORD_TYPES,
+ * other keys are records of the single-record layout. Every record of the contract is reported, whatever its type.
+ * Not part of the test suite, run it with
+ * mvn test -Dtest=ATSTokenContractStorageProfiler [-Dprofiler.holders=100] [-Dprofiler.operators=0,1,16] [-Dprofiler.storage=target/storage]
+ * - without profiler.storage, for each number of operators of profiler.operators, it deploys the contract on the
+ *   embedded AVM, gives profiler.holders holders that many operators, and enumerates the storage of the contract,
+ * - with profiler.storage, it walks the account_* directories of a local kernel storage instead, such as the
+ *   target/storage tree of a local deployment, and reports every storage record found there.
+ */
+public class ATSTokenContractStorageProfiler {
+    private static final int KEY_LENGTH = 32;
+    private static final String OTHER_RECORD_TYPE = "legacy holder record or other";
+    private static final Map<Byte, String> RECORD_TYPES = getRecordTypes();
+
+    @Rule
+    public AvmRule avmRule = new AvmRule(false);
+
+    private Address deployer = avmRule.getPreminedAccount();
+    private Address contractAddress;
+
+    @Test
+    public void profileStorage() throws IOException {
+        String storageDirectory = System.getProperty("profiler.storage");
+        if (storageDirectory != null) {
+            StorageProfile profile = new StorageProfile();
+            walkStorage(new File(storageDirectory), profile);
+            System.out.println("Storage of " + storageDirectory);
+            profile.print(0);
+            return;
+        }
+
+        int holderCount = Integer.getInteger("profiler.holders", 100);
+        for (String operators : System.getProperty("profiler.operators", "0,1,16").split(",")) {
+            int operatorCount = Integer.parseInt(operators.trim());
+            StorageRecordingKernel kernel = new StorageRecordingKernel();
+            avmRule.kernel = kernel;
+            deployDapp();
+            for (int i = 0; i < holderCount; i++) {
+                Address[] operatorAddresses = new Address[operatorCount];
+                for (int j = 0; j < operatorCount; j++) {
+                    operatorAddresses[j] = avmRule.getRandomAddress(BigInteger.ZERO);
+                }
+                newHolder(operatorAddresses);
+            }
+            StorageProfile profile = new StorageProfile();
+            org.aion.types.Address contract = org.aion.types.Address.wrap(contractAddress.toByteArray());
+            for (ByteBuffer key : kernel.getKeys(contract)) {
+                profile.add(key.array(), kernel.getStorage(contract, key.array()));
+            }
+            System.out.println("Storage of " + holderCount + " holders with " + operatorCount + " operators, and of the creator");
+            profile.print(holderCount);
+        }
+    }
+
+    private void deployDapp() {
+        byte[] data = new ABIStreamingEncoder().encodeOneString("JENNIJUJU")
+                .encodeOneString("J3N")
+                .encodeOneInteger(1)
+                .encodeOneByteArray(BigInteger.TEN.pow(30).toByteArray())
+                .toBytes();
+        contractAddress = avmRule.deploy(deployer, BigInteger.ZERO, avmRule.getDappBytes(ATSTokenContract.class, data)).getDappAddress();
+    }
+
+    private void newHolder(Address[] operators) {
+        Address tokenHolder = avmRule.getRandomAddress(BigInteger.TEN.pow(24));
+        call(deployer, new ABIStreamingEncoder().encodeOneString("send")
+                .encodeOneAddress(tokenHolder)
+                .encodeOneByteArray(BigInteger.TEN.pow(18).toByteArray())
+                .encodeOneByteArray(new byte[0]));
+        for (int start = 0; start < operators.length; start += 32) {
+            Address[] batch = new Address[Math.min(32, operators.length - start)];
+            System.arraycopy(operators, start, batch, 0, batch.length);
+            call(tokenHolder, new ABIStreamingEncoder().encodeOneString("authorizeOperators").encodeOneAddressArray(batch));
+        }
+    }
+
+    /**
+     * Record types of the *_PREFIX constants of ATSTokenContract, by prefix byte. They are copied rather than read
+     * from the contract, as loading its constants would run its static initializer outside of the AVM.
+     */
+    private static Map<Byte, String> getRecordTypes() {
+        Map<Byte, String> recordTypes = new HashMap<>();
+        recordTypes.put((byte) 0x01, "balance");
+        recordTypes.put((byte) 0x02, "operators");
+        recordTypes.put((byte) 0x03, "operator");
+        recordTypes.put((byte) 0x04, "operator slot");
+        recordTypes.put((byte) 0x05, "airdrop claimed");
+        recordTypes.put((byte) 0x06, "checkpoints");
+        recordTypes.put((byte) 0x07, "checkpoint");
+        recordTypes.put((byte) 0x08, "dividends");
+        recordTypes.put((byte) 0x09, "nonce");
+        recordTypes.put((byte) 0x0A, "token hooks");
+        recordTypes.put((byte) 0x0B, "default operator opt out");
+        return recordTypes;
+    }
+
+    private void call(Address from, ABIStreamingEncoder encoder) {
+        Assert.assertTrue(avmRule.call(from, contractAddress, BigInteger.ZERO, encoder.toBytes()).getReceiptStatus().isSuccess());
+    }
+
+    /**
+     * Storage records are the files of an account directory named with a hex 32-byte key, after the last '_'.
+     */
+    private static void walkStorage(File directory, StorageProfile profile) throws IOException {
+        File[] files = directory.listFiles();
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (file.isDirectory()) {
+                walkStorage(file, profile);
+                continue;
+            }
+            String hexKey = file.getName().substring(file.getName().lastIndexOf('_') + 1);
+            if (directory.getName().startsWith("account_") && hexKey.matches("[0-9a-fA-F]{" + (2 * KEY_LENGTH) + "}")) {
+                byte[] key = new byte[KEY_LENGTH];
+                for (int i = 0; i < KEY_LENGTH; i++) {
+                    key[i] = (byte) Integer.parseInt(hexKey.substring(2 * i, 2 * i + 2), 16);
+                }
+                profile.add(key, Files.readAllBytes(file.toPath()));
+            }
+        }
+    }
+
+    private static class StorageProfile {
+        private final Map<String, RecordTypeProfile> recordTypes = new TreeMap<>();
+
+        /**
+         * @param key   storage key
+         * @param value record, null or empty if there is none
+         */
+        private void add(byte[] key, byte[] value) {
+            if (value == null || value.length == 0) {
+                return;
+            }
+            String recordType = RECORD_TYPES.getOrDefault(key[0], OTHER_RECORD_TYPE);
+            recordTypes.computeIfAbsent(recordType, name -> new RecordTypeProfile()).add(value.length);
+        }
+
+        private void print(int holderCount) {
+            long totalBytes = 0;
+            for (Map.Entry<String, RecordTypeProfile> recordType : recordTypes.entrySet()) {
+                RecordTypeProfile profile = recordType.getValue();
+                long bytes = profile.records * KEY_LENGTH + profile.valueBytes;
+                totalBytes += bytes;
+                System.out.println(String.format("  %-26s %8d records %10d bytes (keys %d, values %d), record sizes %s",
+                        recordType.getKey(), profile.records, bytes, profile.records * KEY_LENGTH, profile.valueBytes, profile.sizes));
+            }
+            System.out.println(String.format("  %-26s %27d bytes", "total", totalBytes));
+            if (holderCount > 0) {
+                System.out.println(String.format("  %-26s %27d bytes", "per holder", totalBytes / holderCount));
+            }
+        }
+    }
+
+    /**
+     * Kernel which keeps the key of every record written, so that the storage of a contract can be enumerated:
+     * every record reaches the kernel through putStorage when its transaction commits.
+     */
+    private static class StorageRecordingKernel extends TestingKernel {
+        private final Map<org.aion.types.Address, Set<ByteBuffer>> keys = new HashMap<>();
+
+        @Override
+        public void putStorage(org.aion.types.Address address, byte[] key, byte[] value) {
+            super.putStorage(address, key, value);
+            keys.computeIfAbsent(address, account -> new HashSet<>()).add(ByteBuffer.wrap(key.clone()));
+        }
+
+        private Set<ByteBuffer> getKeys(org.aion.types.Address address) {
+            return keys.getOrDefault(address, new HashSet<>());
+        }
+    }
+
+    private static class RecordTypeProfile {
+        private long records;
+        private long valueBytes;
+        private final Map<Integer, Integer> sizes = new TreeMap<>();
+
+        private void add(int valueLength) {
+            records++;
+            valueBytes += valueLength;
+            sizes.merge(valueLength, 1, Integer::sum);
+        }
+    }
+}
@@ -4,14 +4,23 @@ import avm.Address;
 import avm.Blockchain;
 import org.aion.avm.core.util.LogSizeUtils;
 import org.aion.avm.tooling.AvmRule;
+import org.aion.avm.tooling.hash.HashUtils;
+import org.aion.avm.userlib.AionBuffer;
 
 import org.aion.avm.userlib.abi.ABIStreamingEncoder;
 import org.aion.vm.api.interfaces.IExecutionLog;
 import org.aion.vm.api.interfaces.ResultCode;
+import net.i2p.crypto.eddsa.EdDSAEngine;
+import net.i2p.crypto.eddsa.EdDSAPrivateKey;
+import net.i2p.crypto.eddsa.spec.EdDSANamedCurveTable;
+import net.i2p.crypto.eddsa.spec.EdDSAParameterSpec;
+import net.i2p.crypto.eddsa.spec.EdDSAPrivateKeySpec;
 import org.junit.*;
 
 import java.math.BigInteger;
+import java.security.MessageDigest;
 import java.util.Arrays;
+import java.util.List;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
@@ -60,9 +69,9 @@ public class ATSTokenContractTest {
         Assert.assertTrue(resInt == 1);
 
         result = avmRule.call(deployer,contractAddress,BigInteger.ZERO,encoder.encodeOneString("getTokenTotalSupply").toBytes());
-        resStr = (String) result.getDecodedReturnData();
-        System.out.println("Total Supply " + resStr);
-        Assert.assertTrue(resStr.equals(new BigInteger(tokenTotalSupply).toString()));
+        byte[] resBytes = (byte[]) result.getDecodedReturnData();
+        System.out.println("Total Supply " + new BigInteger(resBytes));
+        assertArrayEquals(tokenTotalSupply, resBytes);
 
         result = avmRule.call(deployer,contractAddress, BigInteger.ZERO, encoder.encodeOneString("getBalanceOf").encodeOneAddress(deployer).toBytes());
         resStr = (String) result.getDecodedReturnData();
@@ -816,5 +825,897 @@ public class ATSTokenContractTest {
         Assert.assertTrue(res);
     }
 
+    //balance and operators are kept apart, sending does not touch the operators
+    @Test
+    public void testSend() {
+        ABIStreamingEncoder encoder = new ABIStreamingEncoder();
+        Address operator = avmRule.getRandomAddress(BigInteger.ZERO);
+        AvmRule.ResultWrapper result = avmRule.call(deployer,contractAddress,BigInteger.ZERO,
+                encoder.encodeOneString("authorizeOperator")
+                        .encodeOneAddress(operator)
+                        .toBytes());
+        Assert.assertTrue(result.getReceiptStatus().isSuccess());
+
+        Address recipient = avmRule.getRandomAddress(BigInteger.ZERO);
+        BigInteger amount = BigInteger.TEN.multiply(nAmp);
+        result = avmRule.call(deployer,contractAddress,BigInteger.ZERO,
+                encoder.encodeOneString("send")
+                        .encodeOneAddress(recipient)
+                        .encodeOneByteArray(amount.toByteArray())
+                        .encodeOneByteArray(new byte[0])
+                        .toBytes());
+        Assert.assertTrue(result.getReceiptStatus().isSuccess());
+
+        assertEquals(1, result.getLogs().size());
+        IExecutionLog log = result.getLogs().get(0);
+        assertArrayEquals(LogSizeUtils.truncatePadTopic("Sent".getBytes()), log.getTopics().get(0));
+        assertArrayEquals(LogSizeUtils.truncatePadTopic(deployer.toByteArray()), log.getTopics().get(1));
+        assertArrayEquals(LogSizeUtils.truncatePadTopic(deployer.toByteArray()), log.getTopics().get(2));
+        assertArrayEquals(LogSizeUtils.truncatePadTopic(recipient.toByteArray()), log.getTopics().get(3));
+
+        result = avmRule.call(deployer,contractAddress, BigInteger.ZERO, encoder.encodeOneString("getBalanceOf").encodeOneAddress(recipient).toBytes());
+        Assert.assertEquals(amount.toString(), result.getDecodedReturnData());
+
+        result = avmRule.call(deployer,contractAddress, BigInteger.ZERO, encoder.encodeOneString("getBalanceOf").encodeOneAddress(deployer).toBytes());
+        Assert.assertEquals(new BigInteger(tokenTotalSupply).subtract(amount).toString(), result.getDecodedReturnData());
+
+        result = avmRule.call(deployer,contractAddress,BigInteger.ZERO,
+                encoder.encodeOneString("isOperatorFor")
+                        .encodeOneAddress(operator)
+                        .encodeOneAddress(deployer)
+                        .toBytes());
+        Assert.assertTrue((boolean) result.getDecodedReturnData());
+    }
+
+    //operator moves the token holder's tokens, not its own
+    @Test
+    public void testOperatorSend() {
+        ABIStreamingEncoder encoder = new ABIStreamingEncoder();
+        Address operator = avmRule.getRandomAddress(BigInteger.TEN.multiply(nAmp));
+        AvmRule.ResultWrapper result = avmRule.call(deployer,contractAddress,BigInteger.ZERO,
+                encoder.encodeOneString("authorizeOperator")
+                        .encodeOneAddress(operator)
+                        .toBytes());
+        Assert.assertTrue(result.getReceiptStatus().isSuccess());
+
+        Address recipient = avmRule.getRandomAddress(BigInteger.TEN.multiply(nAmp));
+        BigInteger amount = BigInteger.TEN.multiply(nAmp);
+        result = avmRule.call(operator,contractAddress,BigInteger.ZERO,
+                encoder.encodeOneString("operatorSend")
+                        .encodeOneAddress(deployer)
+                        .encodeOneAddress(recipient)
+                        .encodeOneByteArray(amount.toByteArray())
+                        .encodeOneByteArray(new byte[0])
+                        .encodeOneByteArray(new byte[0])
+                        .toBytes());
+        Assert.assertTrue(result.getReceiptStatus().isSuccess());
+
+        result = avmRule.call(deployer,contractAddress, BigInteger.ZERO, encoder.encodeOneString("getBalanceOf").encodeOneAddress(recipient).toBytes());
+        Assert.assertEquals(amount.toString(), result.getDecodedReturnData());
+
+        result = avmRule.call(deployer,contractAddress, BigInteger.ZERO, encoder.encodeOneString("getBalanceOf").encodeOneAddress(deployer).toBytes());
+        Assert.assertEquals(new BigInteger(tokenTotalSupply).subtract(amount).toString(), result.getDecodedReturnData());
+
+        //not an operator
+        result = avmRule.call(recipient,contractAddress,BigInteger.ZERO,
+                encoder.encodeOneString("operatorSend")
+                        .encodeOneAddress(deployer)
+                        .encodeOneAddress(recipient)
+                        .encodeOneByteArray(amount.toByteArray())
+                        .encodeOneByteArray(new byte[0])
+                        .encodeOneByteArray(new byte[0])
+                        .toBytes());
+        Assert.assertTrue(result.getReceiptStatus().isFailed());
+    }
+
+    //revoking moves the last operator into the freed slot, the others stay authorized
+    @Test
+    public void testRevokeOperatorReusesSlot() {
+        ABIStreamingEncoder encoder = new ABIStreamingEncoder();
+        Address tokenHolder = avmRule.getRandomAddress(BigInteger.TEN.multiply(nAmp));
+        Address[] operators = new Address[4];
+        for (int i = 0; i < operators.length; i++) {
+            operators[i] = avmRule.getRandomAddress(BigInteger.ZERO);
+            AvmRule.ResultWrapper result = avmRule.call(tokenHolder,contractAddress,BigInteger.ZERO,
+                    encoder.encodeOneString("authorizeOperator").encodeOneAddress(operators[i]).toBytes());
+            Assert.assertTrue(result.getReceiptStatus().isSuccess());
+        }
+
+        AvmRule.ResultWrapper result = avmRule.call(tokenHolder,contractAddress,BigInteger.ZERO,
+                encoder.encodeOneString("revokeOperator").encodeOneAddress(operators[0]).toBytes());
+        Assert.assertTrue(result.getReceiptStatus().isSuccess());
+        assertEquals(1, result.getLogs().size());
+
+        //revoke the operator that was moved
+        result = avmRule.call(tokenHolder,contractAddress,BigInteger.ZERO,
+                encoder.encodeOneString("revokeOperator").encodeOneAddress(operators[3]).toBytes());
+        Assert.assertTrue(result.getReceiptStatus().isSuccess());
+        assertEquals(1, result.getLogs().size());
+
+        //authorize the first one again
+        result = avmRule.call(tokenHolder,contractAddress,BigInteger.ZERO,
+                encoder.encodeOneString("authorizeOperator").encodeOneAddress(operators[0]).toBytes());
+        Assert.assertTrue(result.getReceiptStatus().isSuccess());
+        assertEquals(1, result.getLogs().size());
+
+        boolean[] expected = {true, true, true, false};
+        for (int i = 0; i < operators.length; i++) {
+            result = avmRule.call(deployer,contractAddress,BigInteger.ZERO,
+                    encoder.encodeOneString("isOperatorFor")
+                            .encodeOneAddress(operators[i])
+                            .encodeOneAddress(tokenHolder)
+                            .toBytes());
+            assertEquals(expected[i], result.getDecodedReturnData());
+        }
+    }
+
+    @Test
+    public void testBatchSend() {
+        ABIStreamingEncoder encoder = new ABIStreamingEncoder();
+        Address[] recipients = new Address[3];
+        byte[][] amounts = new byte[3][];
+        BigInteger totalAmount = BigInteger.ZERO;
+        for (int i = 0; i < recipients.length; i++) {
+            recipients[i] = avmRule.getRandomAddress(BigInteger.ZERO);
+            BigInteger amount = BigInteger.valueOf(i + 1).multiply(nAmp);
+            amounts[i] = amount.toByteArray();
+            totalAmount = totalAmount.add(amount);
+        }
+        AvmRule.ResultWrapper result = avmRule.call(deployer,contractAddress,BigInteger.ZERO,
+                encoder.encodeOneString("batchSend")
+                        .encodeOneAddressArray(recipients)
+                        .encodeOne2DByteArray(amounts)
+                        .encodeOneByteArray(new byte[0])
+                        .toBytes());
+        Assert.assertTrue(result.getReceiptStatus().isSuccess());
+
+        //one Sent event per recipient
+        assertEquals(recipients.length, result.getLogs().size());
+        List<IExecutionLog> logs = result.getLogs();
+        for (int i = 0; i < recipients.length; i++) {
+            IExecutionLog log = logs.get(i);
+            assertArrayEquals(LogSizeUtils.truncatePadTopic("Sent".getBytes()), log.getTopics().get(0));
+            assertArrayEquals(LogSizeUtils.truncatePadTopic(recipients[i].toByteArray()), log.getTopics().get(3));
+
+            result = avmRule.call(deployer,contractAddress, BigInteger.ZERO, encoder.encodeOneString("getBalanceOf").encodeOneAddress(recipients[i]).toBytes());
+            Assert.assertEquals(new BigInteger(amounts[i]).toString(), result.getDecodedReturnData());
+        }
+
+        result = avmRule.call(deployer,contractAddress, BigInteger.ZERO, encoder.encodeOneString("getBalanceOf").encodeOneAddress(deployer).toBytes());
+        Assert.assertEquals(new BigInteger(tokenTotalSupply).subtract(totalAmount).toString(), result.getDecodedReturnData());
+    }
+
+    //the summed amount is checked against the sender balance
+    @Test
+    public void testBatchSendInsufficientBalance() {
+        ABIStreamingEncoder encoder = new ABIStreamingEncoder();
+        Address tokenHolder = avmRule.getRandomAddress(BigInteger.TEN.multiply(nAmp));
+        BigInteger amount = BigInteger.TEN.multiply(nAmp);
+        AvmRule.ResultWrapper result = avmRule.call(deployer,contractAddress,BigInteger.ZERO,
+                encoder.encodeOneString("send")
+                        .encodeOneAddress(tokenHolder)
+                        .encodeOneByteArray(amount.toByteArray())
+                        .encodeOneByteArray(new byte[0])
+                        .toBytes());
+        Assert.assertTrue(result.getReceiptStatus().isSuccess());
+
+        Address[] recipients = {avmRule.getRandomAddress(BigInteger.ZERO), avmRule.getRandomAddress(BigInteger.ZERO)};
+        byte[][] amounts = {amount.toByteArray(), BigInteger.ONE.toByteArray()};
+        result = avmRule.call(tokenHolder,contractAddress,BigInteger.ZERO,
+                encoder.encodeOneString("batchSend")
+                        .encodeOneAddressArray(recipients)
+                        .encodeOne2DByteArray(amounts)
+                        .encodeOneByteArray(new byte[0])
+                        .toBytes());
+        Assert.assertTrue(result.getReceiptStatus().isFailed());
+    }
+
+    //recipient balance grows from the long record format to the BigInteger one
+    @Test
+    public void testSendAcrossBalanceFormats() {
+        ABIStreamingEncoder encoder = new ABIStreamingEncoder();
+        Address recipient = avmRule.getRandomAddress(BigInteger.TEN.multiply(nAmp));
+        BigInteger[] amounts = {BigInteger.valueOf(5), BigInteger.valueOf(Long.MAX_VALUE), BigInteger.TEN.multiply(nAmp)};
+        BigInteger expected = BigInteger.ZERO;
+        for (BigInteger amount : amounts) {
+            AvmRule.ResultWrapper result = avmRule.call(deployer,contractAddress,BigInteger.ZERO,
+                    encoder.encodeOneString("send")
+                            .encodeOneAddress(recipient)
+                            .encodeOneByteArray(amount.toByteArray())
+                            .encodeOneByteArray(new byte[0])
+                            .toBytes());
+            Assert.assertTrue(result.getReceiptStatus().isSuccess());
+            expected = expected.add(amount);
+
+            result = avmRule.call(deployer,contractAddress, BigInteger.ZERO, encoder.encodeOneString("getBalanceOf").encodeOneAddress(recipient).toBytes());
+            Assert.assertEquals(expected.toString(), result.getDecodedReturnData());
+        }
+
+        //and back
+        Address other = avmRule.getRandomAddress(BigInteger.ZERO);
+        BigInteger amount = expected.subtract(BigInteger.ONE);
+        AvmRule.ResultWrapper result = avmRule.call(recipient,contractAddress,BigInteger.ZERO,
+                encoder.encodeOneString("send")
+                        .encodeOneAddress(other)
+                        .encodeOneByteArray(amount.toByteArray())
+                        .encodeOneByteArray(new byte[0])
+                        .toBytes());
+        Assert.assertTrue(result.getReceiptStatus().isSuccess());
+        result = avmRule.call(deployer,contractAddress, BigInteger.ZERO, encoder.encodeOneString("getBalanceOf").encodeOneAddress(recipient).toBytes());
+        Assert.assertEquals("1", result.getDecodedReturnData());
+    }
+
+    @Test
+    public void testGetBalancesOf() {
+        ABIStreamingEncoder encoder = new ABIStreamingEncoder();
+        Address recipient = avmRule.getRandomAddress(BigInteger.ZERO);
+        BigInteger amount = BigInteger.valueOf(5);
+        AvmRule.ResultWrapper result = avmRule.call(deployer,contractAddress,BigInteger.ZERO,
+                encoder.encodeOneString("send")
+                        .encodeOneAddress(recipient)
+                        .encodeOneByteArray(amount.toByteArray())
+                        .encodeOneByteArray(new byte[0])
+                        .toBytes());
+        Assert.assertTrue(result.getReceiptStatus().isSuccess());
+
+        Address[] tokenHolders = {deployer, recipient, avmRule.getRandomAddress(BigInteger.ZERO)};
+        BigInteger[] expected = {new BigInteger(tokenTotalSupply).subtract(amount), amount, BigInteger.ZERO};
+        result = avmRule.call(deployer,contractAddress,BigInteger.ZERO,
+                encoder.encodeOneString("getBalancesOf").encodeOneAddressArray(tokenHolders).toBytes());
+        byte[] balances = (byte[]) result.getDecodedReturnData();
+        assertEquals(tokenHolders.length * 32, balances.length);
+        for (int i = 0; i < tokenHolders.length; i++) {
+            assertEquals(expected[i], new BigInteger(Arrays.copyOfRange(balances, i * 32, (i + 1) * 32)));
+
+            result = avmRule.call(deployer,contractAddress,BigInteger.ZERO,
+                    encoder.encodeOneString("getBalanceOfBytes").encodeOneAddress(tokenHolders[i]).toBytes());
+            assertEquals(expected[i], new BigInteger((byte[]) result.getDecodedReturnData()));
+        }
+    }
+
+    @Test
+    public void testGetTokenInfo() {
+        ABIStreamingEncoder encoder = new ABIStreamingEncoder();
+        AvmRule.ResultWrapper result = avmRule.call(deployer,contractAddress,BigInteger.ZERO,encoder.encodeOneString("getTokenInfo").toBytes());
+        AionBuffer tokenInfo = AionBuffer.wrap((byte[]) result.getDecodedReturnData());
+
+        assertEquals(tokenGranularity, tokenInfo.getInt());
+        assertEquals(new BigInteger(tokenTotalSupply), tokenInfo.get32ByteInt());
+        byte[] name = new byte[tokenInfo.getInt()];
+        tokenInfo.get(name);
+        assertEquals(tokenName, new String(name));
+        byte[] symbol = new byte[tokenInfo.getInt()];
+        tokenInfo.get(symbol);
+        assertEquals(tokenSymbol, new String(symbol));
+        assertEquals(tokenInfo.getLimit(), tokenInfo.getPosition());
+    }
+
+    //genesis allocations are credited at deployment and logged with the token creation
+    @Test
+    public void testDeployWithGenesisAllocations() {
+        Address[] genesisHolders = {avmRule.getRandomAddress(BigInteger.ZERO), avmRule.getRandomAddress(BigInteger.ZERO)};
+        BigInteger[] amounts = {BigInteger.TEN.multiply(nAmp), BigInteger.valueOf(7)};
+        byte[][] genesisAmounts = {amounts[0].toByteArray(), amounts[1].toByteArray()};
+        byte[] data = new ABIStreamingEncoder().encodeOneString(tokenName)
+                .encodeOneString(tokenSymbol)
+                .encodeOneInteger(tokenGranularity)
+                .encodeOneByteArray(tokenTotalSupply)
+                .encodeOneAddressArray(genesisHolders)
+                .encodeOne2DByteArray(genesisAmounts)
+                .toBytes();
+        AvmRule.ResultWrapper result = avmRule.deploy(deployer, BigInteger.ZERO, avmRule.getDappBytes(ATSTokenContract.class, data));
+        Assert.assertTrue(result.getReceiptStatus().isSuccess());
+        Address dappAddress = result.getDappAddress();
+
+        assertEquals(1, result.getLogs().size());
+        IExecutionLog log = result.getLogs().get(0);
+        assertArrayEquals(LogSizeUtils.truncatePadTopic("ATSTokenCreated".getBytes()), log.getTopics().get(0));
+        assertArrayEquals(AionBuffer.allocate(32).put32ByteInt(new BigInteger(tokenTotalSupply)).getArray(), log.getTopics().get(1));
+        AionBuffer allocations = AionBuffer.wrap(log.getData());
+        for (int i = 0; i < genesisHolders.length; i++) {
+            assertEquals(genesisHolders[i], allocations.getAddress());
+            assertEquals(amounts[i], allocations.get32ByteInt());
+        }
+
+        ABIStreamingEncoder encoder = new ABIStreamingEncoder();
+        for (int i = 0; i < genesisHolders.length; i++) {
+            result = avmRule.call(deployer, dappAddress, BigInteger.ZERO, encoder.encodeOneString("getBalanceOf").encodeOneAddress(genesisHolders[i]).toBytes());
+            assertEquals(amounts[i].toString(), result.getDecodedReturnData());
+        }
+        result = avmRule.call(deployer, dappAddress, BigInteger.ZERO, encoder.encodeOneString("getBalanceOf").encodeOneAddress(deployer).toBytes());
+        assertEquals(new BigInteger(tokenTotalSupply).subtract(amounts[0]).subtract(amounts[1]).toString(), result.getDecodedReturnData());
+    }
+
+    //genesis allocations can not exceed the total supply
+    @Test
+    public void testDeployWithGenesisAllocationsOverSupply() {
+        Address[] genesisHolders = {avmRule.getRandomAddress(BigInteger.ZERO)};
+        byte[][] genesisAmounts = {new BigInteger(tokenTotalSupply).add(BigInteger.ONE).toByteArray()};
+        byte[] data = new ABIStreamingEncoder().encodeOneString(tokenName)
+                .encodeOneString(tokenSymbol)
+                .encodeOneInteger(tokenGranularity)
+                .encodeOneByteArray(tokenTotalSupply)
+                .encodeOneAddressArray(genesisHolders)
+                .encodeOne2DByteArray(genesisAmounts)
+                .toBytes();
+        AvmRule.ResultWrapper result = avmRule.deploy(deployer, BigInteger.ZERO, avmRule.getDappBytes(ATSTokenContract.class, data));
+        Assert.assertTrue(result.getReceiptStatus().isFailed());
+    }
+
+    @Test
+    public void testClaimAirdrop() {
+        ABIStreamingEncoder encoder = new ABIStreamingEncoder();
+        Address[] recipients = {avmRule.getRandomAddress(BigInteger.TEN.multiply(nAmp)), avmRule.getRandomAddress(BigInteger.TEN.multiply(nAmp))};
+        BigInteger[] amounts = {BigInteger.valueOf(100), BigInteger.TEN.multiply(nAmp)};
+        byte[][] leaves = new byte[2][];
+        for (int i = 0; i < leaves.length; i++) {
+            leaves[i] = HashUtils.blake2b(AionBuffer.allocate(4 + 32 + 32).putInt(i).putAddress(recipients[i]).put32ByteInt(amounts[i]).getArray());
+        }
+        byte[] merkleRoot = hashAirdropNodes(leaves[0], leaves[1]);
+
+        //only the token creator starts an airdrop
+        AvmRule.ResultWrapper result = avmRule.call(recipients[0], contractAddress, BigInteger.ZERO,
+                encoder.encodeOneString("startAirdrop").encodeOneByteArray(merkleRoot).toBytes());
+        Assert.assertTrue(result.getReceiptStatus().isFailed());
+        result = avmRule.call(deployer, contractAddress, BigInteger.ZERO,
+                encoder.encodeOneString("startAirdrop").encodeOneByteArray(merkleRoot).toBytes());
+        Assert.assertTrue(result.getReceiptStatus().isSuccess());
+
+        //wrong amount
+        result = avmRule.call(recipients[0], contractAddress, BigInteger.ZERO,
+                encoder.encodeOneString("claimAirdrop")
+                        .encodeOneInteger(0)
+                        .encodeOneByteArray(amounts[1].toByteArray())
+                        .encodeOne2DByteArray(new byte[][]{leaves[1]})
+                        .toBytes());
+        Assert.assertTrue(result.getReceiptStatus().isFailed());
+
+        result = avmRule.call(recipients[0], contractAddress, BigInteger.ZERO,
+                encoder.encodeOneString("claimAirdrop")
+                        .encodeOneInteger(0)
+                        .encodeOneByteArray(amounts[0].toByteArray())
+                        .encodeOne2DByteArray(new byte[][]{leaves[1]})
+                        .toBytes());
+        Assert.assertTrue(result.getReceiptStatus().isSuccess());
+        assertEquals(1, result.getLogs().size());
+        assertArrayEquals(LogSizeUtils.truncatePadTopic("Sent".getBytes()), result.getLogs().get(0).getTopics().get(0));
+
+        result = avmRule.call(deployer, contractAddress, BigInteger.ZERO, encoder.encodeOneString("getBalanceOf").encodeOneAddress(recipients[0]).toBytes());
+        assertEquals(amounts[0].toString(), result.getDecodedReturnData());
+        result = avmRule.call(deployer, contractAddress, BigInteger.ZERO, encoder.encodeOneString("isAirdropClaimed").encodeOneInteger(0).toBytes());
+        Assert.assertTrue((boolean) result.getDecodedReturnData());
+        result = avmRule.call(deployer, contractAddress, BigInteger.ZERO, encoder.encodeOneString("isAirdropClaimed").encodeOneInteger(1).toBytes());
+        Assert.assertFalse((boolean) result.getDecodedReturnData());
+
+        //claim only once
+        result = avmRule.call(recipients[0], contractAddress, BigInteger.ZERO,
+                encoder.encodeOneString("claimAirdrop")
+                        .encodeOneInteger(0)
+                        .encodeOneByteArray(amounts[0].toByteArray())
+                        .encodeOne2DByteArray(new byte[][]{leaves[1]})
+                        .toBytes());
+        Assert.assertTrue(result.getReceiptStatus().isFailed());
+    }
+
+    private static byte[] hashAirdropNodes(byte[] left, byte[] right) {
+        boolean leftFirst = Arrays.compareUnsigned(left, right) < 0;
+        byte[] nodes = new byte[64];
+        System.arraycopy(leftFirst ? left : right, 0, nodes, 0, 32);
+        System.arraycopy(leftFirst ? right : left, 0, nodes, 32, 32);
+        return HashUtils.blake2b(nodes);
+    }
+
+    @Test
+    public void testBalanceCheckpoints() {
+        ABIStreamingEncoder encoder = new ABIStreamingEncoder();
+        Address tokenHolder = avmRule.getRandomAddress(BigInteger.TEN.multiply(nAmp));
+
+        //no history without checkpoints
+        AvmRule.ResultWrapper result = avmRule.call(deployer, contractAddress, BigInteger.ZERO,
+                encoder.encodeOneString("getBalanceOfAt").encodeOneAddress(tokenHolder).encodeOneLong(Long.MAX_VALUE).toBytes());
+        Assert.assertTrue(result.getReceiptStatus().isFailed());
+
+        result = avmRule.call(tokenHolder, contractAddress, BigInteger.ZERO, encoder.encodeOneString("enableBalanceCheckpoints").toBytes());
+        Assert.assertTrue(result.getReceiptStatus().isSuccess());
+        result = avmRule.call(deployer, contractAddress, BigInteger.ZERO,
+                encoder.encodeOneString("getBalanceOfAt").encodeOneAddress(tokenHolder).encodeOneLong(Long.MAX_VALUE).toBytes());
+        assertEquals("0", result.getDecodedReturnData());
+
+        BigInteger amount = BigInteger.TEN.multiply(nAmp);
+        result = avmRule.call(deployer, contractAddress, BigInteger.ZERO,
+                encoder.encodeOneString("send")
+                        .encodeOneAddress(tokenHolder)
+                        .encodeOneByteArray(amount.toByteArray())
+                        .encodeOneByteArray(new byte[0])
+                        .toBytes());
+        Assert.assertTrue(result.getReceiptStatus().isSuccess());
+        result = avmRule.call(deployer, contractAddress, BigInteger.ZERO,
+                encoder.encodeOneString("getBalanceOfAt").encodeOneAddress(tokenHolder).encodeOneLong(Long.MAX_VALUE).toBytes());
+        assertEquals(amount.toString(), result.getDecodedReturnData());
+
+        //checkpoints do not change the balance
+        result = avmRule.call(deployer, contractAddress, BigInteger.ZERO, encoder.encodeOneString("getBalanceOf").encodeOneAddress(tokenHolder).toBytes());
+        assertEquals(amount.toString(), result.getDecodedReturnData());
+
+        result = avmRule.call(deployer, contractAddress, BigInteger.ZERO,
+                encoder.encodeOneString("getTotalSupplyAt").encodeOneLong(Long.MAX_VALUE).toBytes());
+        assertArrayEquals(tokenTotalSupply, (byte[]) result.getDecodedReturnData());
+    }
+
+    @Test
+    public void testDividends() {
+        ABIStreamingEncoder encoder = new ABIStreamingEncoder();
+        BigInteger deposit = nAmp;
+        AvmRule.ResultWrapper result = avmRule.call(deployer, contractAddress, deposit, encoder.encodeOneString("depositDividends").toBytes());
+        Assert.assertTrue(result.getReceiptStatus().isSuccess());
+
+        //the deployer holds the whole supply when the first deposit is made
+        Address tokenHolder = avmRule.getRandomAddress(BigInteger.TEN.multiply(nAmp));
+        BigInteger half = new BigInteger(tokenTotalSupply).divide(BigInteger.TWO);
+        result = avmRule.call(deployer, contractAddress, BigInteger.ZERO,
+                encoder.encodeOneString("send")
+                        .encodeOneAddress(tokenHolder)
+                        .encodeOneByteArray(half.toByteArray())
+                        .encodeOneByteArray(new byte[0])
+                        .toBytes());
+        Assert.assertTrue(result.getReceiptStatus().isSuccess());
+
+        result = avmRule.call(deployer, contractAddress, deposit, encoder.encodeOneString("depositDividends").toBytes());
+        Assert.assertTrue(result.getReceiptStatus().isSuccess());
+
+        result = avmRule.call(deployer, contractAddress, BigInteger.ZERO, encoder.encodeOneString("getDividendsOf").encodeOneAddress(deployer).toBytes());
+        BigInteger deployerDividends = new BigInteger((byte[]) result.getDecodedReturnData());
+        result = avmRule.call(deployer, contractAddress, BigInteger.ZERO, encoder.encodeOneString("getDividendsOf").encodeOneAddress(tokenHolder).toBytes());
+        BigInteger tokenHolderDividends = new BigInteger((byte[]) result.getDecodedReturnData());
+
+        //rounding keeps at most a few units in the contract
+        BigInteger expectedHolderDividends = deposit.divide(BigInteger.TWO);
+        Assert.assertTrue(expectedHolderDividends.subtract(tokenHolderDividends).compareTo(BigInteger.TEN) < 0);
+        Assert.assertTrue(deposit.add(expectedHolderDividends).subtract(deployerDividends).compareTo(BigInteger.TEN) < 0);
+
+        BigInteger balanceBefore = avmRule.kernel.getBalance(org.aion.types.Address.wrap(tokenHolder.toByteArray()));
+        result = avmRule.call(tokenHolder, contractAddress, BigInteger.ZERO, encoder.encodeOneString("claimDividends").toBytes());
+        Assert.assertTrue(result.getReceiptStatus().isSuccess());
+        assertEquals(1, result.getLogs().size());
+        BigInteger balanceAfter = avmRule.kernel.getBalance(org.aion.types.Address.wrap(tokenHolder.toByteArray()));
+        //the claim pays for its own energy
+        Assert.assertTrue(balanceAfter.compareTo(balanceBefore) > 0);
+
+        result = avmRule.call(deployer, contractAddress, BigInteger.ZERO, encoder.encodeOneString("getDividendsOf").encodeOneAddress(tokenHolder).toBytes());
+        assertEquals(BigInteger.ZERO, new BigInteger((byte[]) result.getDecodedReturnData()));
+    }
+
+    @Test
+    public void testRelayBatch() throws Exception {
+        ABIStreamingEncoder encoder = new ABIStreamingEncoder();
+        EdDSAParameterSpec spec = EdDSANamedCurveTable.getByName(EdDSANamedCurveTable.ED_25519);
+        EdDSAPrivateKeySpec privateKey = new EdDSAPrivateKeySpec(HashUtils.blake2b("relay holder".getBytes()), spec);
+        byte[] publicKey = privateKey.getA().toByteArray();
+        byte[] holderAddress = HashUtils.blake2b(publicKey);
+        holderAddress[0] = (byte) 0xa0;
+        Address tokenHolder = new Address(holderAddress);
+
+        BigInteger amount = BigInteger.valueOf(1000);
+        AvmRule.ResultWrapper result = avmRule.call(deployer, contractAddress, BigInteger.ZERO,
+                encoder.encodeOneString("send")
+                        .encodeOneAddress(tokenHolder)
+                        .encodeOneByteArray(amount.toByteArray())
+                        .encodeOneByteArray(new byte[0])
+                        .toBytes());
+        Assert.assertTrue(result.getReceiptStatus().isSuccess());
+
+        Address recipient = avmRule.getRandomAddress(BigInteger.ZERO);
+        Address operator = avmRule.getRandomAddress(BigInteger.ZERO);
+        byte[] send = AionBuffer.allocate(1 + 8 + 32 + 32 + 4)
+                .putByte((byte) 0x01).putLong(0).putAddress(recipient).put32ByteInt(BigInteger.valueOf(400)).putInt(0)
+                .getArray();
+        byte[] authorize = AionBuffer.allocate(1 + 8 + 32)
+                .putByte((byte) 0x02).putLong(1).putAddress(operator)
+                .getArray();
+        byte[] signedSend = signRelayOperation(privateKey, publicKey, send);
+        byte[] signedAuthorize = signRelayOperation(privateKey, publicKey, authorize);
+        byte[] packedSignedOps = AionBuffer.allocate(signedSend.length + signedAuthorize.length).put(signedSend).put(signedAuthorize).getArray();
+
+        //relayed by someone else
+        result = avmRule.call(deployer, contractAddress, BigInteger.ZERO,
+                encoder.encodeOneString("relayBatch").encodeOneByteArray(packedSignedOps).toBytes());
+        Assert.assertTrue(result.getReceiptStatus().isSuccess());
+        assertEquals(2, result.getLogs().size());
+
+        result = avmRule.call(deployer, contractAddress, BigInteger.ZERO, encoder.encodeOneString("getBalanceOf").encodeOneAddress(recipient).toBytes());
+        assertEquals("400", result.getDecodedReturnData());
+        result = avmRule.call(deployer, contractAddress, BigInteger.ZERO,
+                encoder.encodeOneString("isOperatorFor").encodeOneAddress(operator).encodeOneAddress(tokenHolder).toBytes());
+        Assert.assertTrue((boolean) result.getDecodedReturnData());
+        result = avmRule.call(deployer, contractAddress, BigInteger.ZERO, encoder.encodeOneString("getNonceOf").encodeOneAddress(tokenHolder).toBytes());
+        assertEquals(2L, result.getDecodedReturnData());
+
+        //replay
+        result = avmRule.call(deployer, contractAddress, BigInteger.ZERO,
+                encoder.encodeOneString("relayBatch").encodeOneByteArray(signedSend).toBytes());
+        Assert.assertTrue(result.getReceiptStatus().isFailed());
+    }
+
+    private byte[] signRelayOperation(EdDSAPrivateKeySpec privateKey, byte[] publicKey, byte[] operation) throws Exception {
+        byte[] message = AionBuffer.allocate(32 + operation.length).putAddress(contractAddress).put(operation).getArray();
+        EdDSAEngine engine = new EdDSAEngine(MessageDigest.getInstance(privateKey.getParams().getHashAlgorithm()));
+        engine.initSign(new EdDSAPrivateKey(privateKey));
+        byte[] signature = engine.signOneShot(message);
+        return AionBuffer.allocate(32 + 64 + operation.length).put(publicKey).put(signature).put(operation).getArray();
+    }
+
+    @Test
+    public void testSendPacked() {
+        ABIStreamingEncoder encoder = new ABIStreamingEncoder();
+        Address[] recipients = {avmRule.getRandomAddress(BigInteger.ZERO), avmRule.getRandomAddress(BigInteger.ZERO)};
+        BigInteger[] amounts = {BigInteger.valueOf(3), BigInteger.TEN.multiply(nAmp)};
+        AionBuffer packedTransfers = AionBuffer.allocate(recipients.length * 64);
+        for (int i = 0; i < recipients.length; i++) {
+            packedTransfers.putAddress(recipients[i]).put32ByteInt(amounts[i]);
+        }
+        AvmRule.ResultWrapper result = avmRule.call(deployer, contractAddress, BigInteger.ZERO,
+                encoder.encodeOneString("sendPacked").encodeOneByteArray(packedTransfers.getArray()).toBytes());
+        Assert.assertTrue(result.getReceiptStatus().isSuccess());
+        assertEquals(recipients.length, result.getLogs().size());
+
+        for (int i = 0; i < recipients.length; i++) {
+            result = avmRule.call(deployer, contractAddress, BigInteger.ZERO, encoder.encodeOneString("getBalanceOf").encodeOneAddress(recipients[i]).toBytes());
+            assertEquals(amounts[i].toString(), result.getDecodedReturnData());
+        }
+
+        //truncated transfer
+        result = avmRule.call(deployer, contractAddress, BigInteger.ZERO,
+                encoder.encodeOneString("sendPacked").encodeOneByteArray(Arrays.copyOfRange(packedTransfers.getArray(), 0, 63)).toBytes());
+        Assert.assertTrue(result.getReceiptStatus().isFailed());
+    }
+
+    @Test
+    public void testTokenHooks() {
+        ABIStreamingEncoder encoder = new ABIStreamingEncoder();
+        byte[] data = encoder.encodeOneString(tokenName)
+                .encodeOneString(tokenSymbol)
+                .encodeOneInteger(tokenGranularity)
+                .encodeOneByteArray(tokenTotalSupply)
+                .toBytes();
+        Address otherContract = avmRule.deploy(deployer, BigInteger.ZERO, avmRule.getDappBytes(ATSTokenContract.class, data)).getDappAddress();
+
+        //a contract without tokensReceived cannot receive tokens
+        AvmRule.ResultWrapper result = avmRule.call(deployer, contractAddress, BigInteger.ZERO,
+                encoder.encodeOneString("send").encodeOneAddress(otherContract).encodeOneByteArray(BigInteger.TEN.toByteArray()).encodeOneByteArray(new byte[0]).toBytes());
+        Assert.assertTrue(result.getReceiptStatus().isFailed());
+
+        //regular accounts cannot register hooks, and receive tokens without them
+        Address tokenRecipient = avmRule.getRandomAddress(BigInteger.ZERO);
+        result = avmRule.call(deployer, contractAddress, BigInteger.ZERO, encoder.encodeOneString("registerTokenHooks").encodeOneBoolean(true).encodeOneBoolean(true).toBytes());
+        Assert.assertTrue(result.getReceiptStatus().isFailed());
+        for (int i = 0; i < 2; i++) {
+            result = avmRule.call(deployer, contractAddress, BigInteger.ZERO,
+                    encoder.encodeOneString("send").encodeOneAddress(tokenRecipient).encodeOneByteArray(BigInteger.TEN.toByteArray()).encodeOneByteArray(new byte[0]).toBytes());
+            Assert.assertTrue(result.getReceiptStatus().isSuccess());
+        }
+        result = avmRule.call(deployer, contractAddress, BigInteger.ZERO, encoder.encodeOneString("getBalanceOf").encodeOneAddress(tokenRecipient).toBytes());
+        assertEquals("20", result.getDecodedReturnData());
+
+        //a contract with tokensReceived registers it and receives tokens
+        Address hooksContract = avmRule.deploy(deployer, BigInteger.ZERO, avmRule.getDappBytes(TokenHooksContract.class, new byte[0])).getDappAddress();
+        result = avmRule.call(deployer, hooksContract, BigInteger.ZERO,
+                encoder.encodeOneString("registerTokenHooks").encodeOneAddress(contractAddress).encodeOneBoolean(false).encodeOneBoolean(true).toBytes());
+        Assert.assertTrue(result.getReceiptStatus().isSuccess());
+        result = avmRule.call(deployer, contractAddress, BigInteger.ZERO,
+                encoder.encodeOneString("send").encodeOneAddress(hooksContract).encodeOneByteArray(BigInteger.TEN.toByteArray()).encodeOneByteArray(new byte[0]).toBytes());
+        Assert.assertTrue(result.getReceiptStatus().isSuccess());
+        result = avmRule.call(deployer, hooksContract, BigInteger.ZERO, encoder.encodeOneString("getTokensReceivedCalls").toBytes());
+        assertEquals(1, result.getDecodedReturnData());
+        result = avmRule.call(deployer, contractAddress, BigInteger.ZERO, encoder.encodeOneString("getBalanceOf").encodeOneAddress(hooksContract).toBytes());
+        assertEquals("10", result.getDecodedReturnData());
+    }
+
+    @Test
+    public void testRevokeAllOperators() {
+        ABIStreamingEncoder encoder = new ABIStreamingEncoder();
+        Address[] operators = new Address[3];
+        for (int i = 0; i < operators.length; i++) {
+            operators[i] = avmRule.getRandomAddress(BigInteger.TEN.multiply(nAmp));
+            avmRule.call(deployer, contractAddress, BigInteger.ZERO, encoder.encodeOneString("authorizeOperator").encodeOneAddress(operators[i]).toBytes());
+        }
+
+        AvmRule.ResultWrapper result = avmRule.call(deployer, contractAddress, BigInteger.ZERO, encoder.encodeOneString("revokeAllOperators").toBytes());
+        Assert.assertTrue(result.getReceiptStatus().isSuccess());
+        assertEquals(1, result.getLogs().size());
+        for (Address operator : operators) {
+            result = avmRule.call(deployer, contractAddress, BigInteger.ZERO, encoder.encodeOneString("isOperatorFor").encodeOneAddress(operator).encodeOneAddress(deployer).toBytes());
+            Assert.assertFalse((boolean) result.getDecodedReturnData());
+        }
+
+        //authorizing again only brings back that operator
+        avmRule.call(deployer, contractAddress, BigInteger.ZERO, encoder.encodeOneString("authorizeOperator").encodeOneAddress(operators[2]).toBytes());
+        for (int i = 0; i < operators.length; i++) {
+            result = avmRule.call(deployer, contractAddress, BigInteger.ZERO, encoder.encodeOneString("isOperatorFor").encodeOneAddress(operators[i]).encodeOneAddress(deployer).toBytes());
+            assertEquals(i == 2, result.getDecodedReturnData());
+        }
+
+        //a stale authorization cannot be revoked
+        result = avmRule.call(deployer, contractAddress, BigInteger.ZERO, encoder.encodeOneString("revokeOperator").encodeOneAddress(operators[0]).toBytes());
+        Assert.assertTrue(result.getReceiptStatus().isSuccess());
+        assertEquals(0, result.getLogs().size());
+
+        result = avmRule.call(operators[0], contractAddress, BigInteger.ZERO,
+                encoder.encodeOneString("operatorSend").encodeOneAddress(deployer).encodeOneAddress(operators[1]).encodeOneByteArray(BigInteger.ONE.toByteArray()).encodeOneByteArray(new byte[0]).encodeOneByteArray(new byte[0]).toBytes());
+        Assert.assertTrue(result.getReceiptStatus().isFailed());
+    }
+
+    @Test
+    public void testDefaultOperators() {
+        ABIStreamingEncoder encoder = new ABIStreamingEncoder();
+        Address defaultOperator = avmRule.getRandomAddress(BigInteger.TEN.multiply(nAmp));
+        Address tokenHolder = avmRule.getRandomAddress(BigInteger.TEN.multiply(nAmp));
+        byte[] data = encoder.encodeOneString(tokenName)
+                .encodeOneString(tokenSymbol)
+                .encodeOneInteger(tokenGranularity)
+                .encodeOneByteArray(tokenTotalSupply)
+                .encodeOneAddressArray(new Address[]{tokenHolder})
+                .encodeOne2DByteArray(new byte[][]{BigInteger.valueOf(100).toByteArray()})
+                .encodeOneAddressArray(new Address[]{defaultOperator})
+                .toBytes();
+        Address tokenAddress = avmRule.deploy(deployer, BigInteger.ZERO, avmRule.getDappBytes(ATSTokenContract.class, data)).getDappAddress();
+
+        AvmRule.ResultWrapper result = avmRule.call(deployer, tokenAddress, BigInteger.ZERO, encoder.encodeOneString("getDefaultOperators").toBytes());
+        assertArrayEquals(new Address[]{defaultOperator}, (Address[]) result.getDecodedReturnData());
+        for (Address holder : new Address[]{deployer, tokenHolder}) {
+            result = avmRule.call(deployer, tokenAddress, BigInteger.ZERO, encoder.encodeOneString("isOperatorFor").encodeOneAddress(defaultOperator).encodeOneAddress(holder).toBytes());
+            Assert.assertTrue((boolean) result.getDecodedReturnData());
+        }
+
+        result = avmRule.call(defaultOperator, tokenAddress, BigInteger.ZERO,
+                encoder.encodeOneString("operatorSend").encodeOneAddress(tokenHolder).encodeOneAddress(deployer).encodeOneByteArray(BigInteger.TEN.toByteArray()).encodeOneByteArray(new byte[0]).encodeOneByteArray(new byte[0]).toBytes());
+        Assert.assertTrue(result.getReceiptStatus().isSuccess());
+
+        //opt out
+        result = avmRule.call(tokenHolder, tokenAddress, BigInteger.ZERO, encoder.encodeOneString("revokeOperator").encodeOneAddress(defaultOperator).toBytes());
+        assertEquals(1, result.getLogs().size());
+        result = avmRule.call(deployer, tokenAddress, BigInteger.ZERO, encoder.encodeOneString("isOperatorFor").encodeOneAddress(defaultOperator).encodeOneAddress(tokenHolder).toBytes());
+        Assert.assertFalse((boolean) result.getDecodedReturnData());
+        result = avmRule.call(deployer, tokenAddress, BigInteger.ZERO, encoder.encodeOneString("isOperatorFor").encodeOneAddress(defaultOperator).encodeOneAddress(deployer).toBytes());
+        Assert.assertTrue((boolean) result.getDecodedReturnData());
+        result = avmRule.call(defaultOperator, tokenAddress, BigInteger.ZERO,
+                encoder.encodeOneString("operatorSend").encodeOneAddress(tokenHolder).encodeOneAddress(deployer).encodeOneByteArray(BigInteger.TEN.toByteArray()).encodeOneByteArray(new byte[0]).encodeOneByteArray(new byte[0]).toBytes());
+        Assert.assertTrue(result.getReceiptStatus().isFailed());
+
+        //opt back in
+        result = avmRule.call(tokenHolder, tokenAddress, BigInteger.ZERO, encoder.encodeOneString("authorizeOperator").encodeOneAddress(defaultOperator).toBytes());
+        assertEquals(1, result.getLogs().size());
+        result = avmRule.call(deployer, tokenAddress, BigInteger.ZERO, encoder.encodeOneString("isOperatorFor").encodeOneAddress(defaultOperator).encodeOneAddress(tokenHolder).toBytes());
+        Assert.assertTrue((boolean) result.getDecodedReturnData());
+
+        //revoking all operators also revokes the default operators
+        result = avmRule.call(tokenHolder, tokenAddress, BigInteger.ZERO, encoder.encodeOneString("revokeAllOperators").toBytes());
+        assertEquals(2, result.getLogs().size());
+        result = avmRule.call(deployer, tokenAddress, BigInteger.ZERO, encoder.encodeOneString("isOperatorFor").encodeOneAddress(defaultOperator).encodeOneAddress(tokenHolder).toBytes());
+        Assert.assertFalse((boolean) result.getDecodedReturnData());
+    }
+
+    @Test
+    public void testOperatorFilter() {
+        ABIStreamingEncoder encoder = new ABIStreamingEncoder();
+        Address[] operators = new Address[20];
+        for (int i = 0; i < operators.length; i++) {
+            operators[i] = avmRule.getRandomAddress(BigInteger.ZERO);
+            if (i % 2 == 0) {
+                avmRule.call(deployer, contractAddress, BigInteger.ZERO, encoder.encodeOneString("authorizeOperator").encodeOneAddress(operators[i]).toBytes());
+            }
+        }
+        for (int i = 0; i < operators.length; i++) {
+            AvmRule.ResultWrapper result = avmRule.call(deployer, contractAddress, BigInteger.ZERO, encoder.encodeOneString("isOperatorFor").encodeOneAddress(operators[i]).encodeOneAddress(deployer).toBytes());
+            assertEquals(i % 2 == 0, result.getDecodedReturnData());
+        }
+
+        //revoked operators stay in the filter, they are told apart by their authorization
+        for (int i = 0; i < operators.length; i += 4) {
+            avmRule.call(deployer, contractAddress, BigInteger.ZERO, encoder.encodeOneString("revokeOperator").encodeOneAddress(operators[i]).toBytes());
+        }
+        for (int i = 0; i < operators.length; i++) {
+            AvmRule.ResultWrapper result = avmRule.call(deployer, contractAddress, BigInteger.ZERO, encoder.encodeOneString("isOperatorFor").encodeOneAddress(operators[i]).encodeOneAddress(deployer).toBytes());
+            assertEquals(i % 4 == 2, result.getDecodedReturnData());
+        }
+    }
+
+    @Test
+    public void testBatchOperators() {
+        ABIStreamingEncoder encoder = new ABIStreamingEncoder();
+        Address[] operators = new Address[4];
+        for (int i = 0; i < operators.length; i++) {
+            operators[i] = avmRule.getRandomAddress(BigInteger.ZERO);
+        }
+        avmRule.call(deployer, contractAddress, BigInteger.ZERO, encoder.encodeOneString("authorizeOperator").encodeOneAddress(operators[0]).toBytes());
+
+        //already authorized and repeated operators are skipped
+        AvmRule.ResultWrapper result = avmRule.call(deployer, contractAddress, BigInteger.ZERO,
+                encoder.encodeOneString("authorizeOperators").encodeOneAddressArray(new Address[]{operators[0], operators[1], operators[2], operators[1], operators[3]}).toBytes());
+        Assert.assertTrue(result.getReceiptStatus().isSuccess());
+        assertEquals(3, result.getLogs().size());
+        for (Address operator : operators) {
+            result = avmRule.call(deployer, contractAddress, BigInteger.ZERO, encoder.encodeOneString("isOperatorFor").encodeOneAddress(operator).encodeOneAddress(deployer).toBytes());
+            Assert.assertTrue((boolean) result.getDecodedReturnData());
+        }
+
+        result = avmRule.call(deployer, contractAddress, BigInteger.ZERO,
+                encoder.encodeOneString("revokeOperators").encodeOneAddressArray(new Address[]{operators[3], operators[0], operators[3]}).toBytes());
+        Assert.assertTrue(result.getReceiptStatus().isSuccess());
+        assertEquals(2, result.getLogs().size());
+        for (int i = 0; i < operators.length; i++) {
+            result = avmRule.call(deployer, contractAddress, BigInteger.ZERO, encoder.encodeOneString("isOperatorFor").encodeOneAddress(operators[i]).encodeOneAddress(deployer).toBytes());
+            assertEquals(i == 1 || i == 2, result.getDecodedReturnData());
+        }
+
+        //the caller cannot be one of its operators
+        result = avmRule.call(deployer, contractAddress, BigInteger.ZERO,
+                encoder.encodeOneString("authorizeOperators").encodeOneAddressArray(new Address[]{operators[0], deployer}).toBytes());
+        Assert.assertTrue(result.getReceiptStatus().isFailed());
+    }
+
+    @Test
+    public void testGetOperators() {
+        ABIStreamingEncoder encoder = new ABIStreamingEncoder();
+        Address[] operators = new Address[5];
+        for (int i = 0; i < operators.length; i++) {
+            operators[i] = avmRule.getRandomAddress(BigInteger.ZERO);
+        }
+        avmRule.call(deployer, contractAddress, BigInteger.ZERO, encoder.encodeOneString("authorizeOperators").encodeOneAddressArray(operators).toBytes());
+
+        AvmRule.ResultWrapper result = avmRule.call(deployer, contractAddress, BigInteger.ZERO, encoder.encodeOneString("getOperatorCount").encodeOneAddress(deployer).toBytes());
+        assertEquals(operators.length, result.getDecodedReturnData());
+
+        AionBuffer listed = AionBuffer.allocate(operators.length * 32);
+        for (int offset = 0; offset < operators.length; offset += 2) {
+            result = avmRule.call(deployer, contractAddress, BigInteger.ZERO,
+                    encoder.encodeOneString("getOperators").encodeOneAddress(deployer).encodeOneInteger(offset).encodeOneInteger(2).toBytes());
+            listed.put((byte[]) result.getDecodedReturnData());
+        }
+        AionBuffer expected = AionBuffer.allocate(operators.length * 32);
+        for (Address operator : operators) {
+            expected.putAddress(operator);
+        }
+        assertArrayEquals(expected.getArray(), listed.getArray());
+
+        //the last operator takes the slot of a revoked one
+        avmRule.call(deployer, contractAddress, BigInteger.ZERO, encoder.encodeOneString("revokeOperator").encodeOneAddress(operators[1]).toBytes());
+        result = avmRule.call(deployer, contractAddress, BigInteger.ZERO,
+                encoder.encodeOneString("getOperators").encodeOneAddress(deployer).encodeOneInteger(1).encodeOneInteger(Integer.MAX_VALUE).toBytes());
+        assertArrayEquals(AionBuffer.allocate(3 * 32).putAddress(operators[4]).putAddress(operators[2]).putAddress(operators[3]).getArray(),
+                (byte[]) result.getDecodedReturnData());
+
+        result = avmRule.call(deployer, contractAddress, BigInteger.ZERO,
+                encoder.encodeOneString("getOperators").encodeOneAddress(deployer).encodeOneInteger(4).encodeOneInteger(2).toBytes());
+        assertEquals(0, ((byte[]) result.getDecodedReturnData()).length);
+    }
+
+    @Test
+    public void testExecute() {
+        ABIStreamingEncoder encoder = new ABIStreamingEncoder();
+        Address operator = avmRule.getRandomAddress(BigInteger.TEN.multiply(nAmp));
+        Address recipient = avmRule.getRandomAddress(BigInteger.TEN.multiply(nAmp));
+        byte[] userData = "memo".getBytes();
+        byte[] ops = AionBuffer.allocate(1 + 32 + 1 + 32 + 32 + 4 + userData.length + 1 + 32 + 32 + 4)
+                .putByte((byte) 0x03).putAddress(operator)
+                .putByte((byte) 0x01).putAddress(recipient).put32ByteInt(BigInteger.valueOf(5)).putInt(userData.length).put(userData)
+                .putByte((byte) 0x01).putAddress(recipient).put32ByteInt(BigInteger.valueOf(7)).putInt(0)
+                .getArray();
+        AvmRule.ResultWrapper result = avmRule.call(deployer, contractAddress, BigInteger.ZERO, encoder.encodeOneString("execute").encodeOneByteArray(ops).toBytes());
+        Assert.assertTrue(result.getReceiptStatus().isSuccess());
+        assertEquals(3, result.getLogs().size());
+        result = avmRule.call(deployer, contractAddress, BigInteger.ZERO, encoder.encodeOneString("getBalanceOf").encodeOneAddress(recipient).toBytes());
+        assertEquals("12", result.getDecodedReturnData());
+
+        //the operator sends twice for the holder
+        ops = AionBuffer.allocate(2 * (1 + 32 + 32 + 32 + 4 + 4))
+                .putByte((byte) 0x02).putAddress(deployer).putAddress(recipient).put32ByteInt(BigInteger.ONE).putInt(0).putInt(0)
+                .putByte((byte) 0x02).putAddress(deployer).putAddress(recipient).put32ByteInt(BigInteger.ONE).putInt(0).putInt(0)
+                .getArray();
+        result = avmRule.call(operator, contractAddress, BigInteger.ZERO, encoder.encodeOneString("execute").encodeOneByteArray(ops).toBytes());
+        Assert.assertTrue(result.getReceiptStatus().isSuccess());
+        assertEquals(2, result.getLogs().size());
+        result = avmRule.call(deployer, contractAddress, BigInteger.ZERO, encoder.encodeOneString("getBalanceOf").encodeOneAddress(recipient).toBytes());
+        assertEquals("14", result.getDecodedReturnData());
+
+        ops = AionBuffer.allocate(1 + 32).putByte((byte) 0x04).putAddress(operator).getArray();
+        avmRule.call(deployer, contractAddress, BigInteger.ZERO, encoder.encodeOneString("execute").encodeOneByteArray(ops).toBytes());
+        result = avmRule.call(deployer, contractAddress, BigInteger.ZERO, encoder.encodeOneString("isOperatorFor").encodeOneAddress(operator).encodeOneAddress(deployer).toBytes());
+        Assert.assertFalse((boolean) result.getDecodedReturnData());
+
+        //all or nothing: the second send is more than the recipient holds
+        Address other = avmRule.getRandomAddress(BigInteger.ZERO);
+        ops = AionBuffer.allocate(2 * (1 + 32 + 32 + 4))
+                .putByte((byte) 0x01).putAddress(other).put32ByteInt(BigInteger.TEN).putInt(0)
+                .putByte((byte) 0x01).putAddress(other).put32ByteInt(BigInteger.TEN).putInt(0)
+                .getArray();
+        result = avmRule.call(recipient, contractAddress, BigInteger.ZERO, encoder.encodeOneString("execute").encodeOneByteArray(ops).toBytes());
+        Assert.assertTrue(result.getReceiptStatus().isFailed());
+        result = avmRule.call(deployer, contractAddress, BigInteger.ZERO, encoder.encodeOneString("getBalanceOf").encodeOneAddress(other).toBytes());
+        assertEquals("0", result.getDecodedReturnData());
+    }
+
+    @Test
+    public void testInstrumentation() throws Exception {
+        InstrumentedKernel kernel = new InstrumentedKernel();
+        avmRule.kernel = kernel;
+        ABIStreamingEncoder encoder = new ABIStreamingEncoder();
+        byte[] data = encoder.encodeOneString(tokenName)
+                .encodeOneString(tokenSymbol)
+                .encodeOneInteger(tokenGranularity)
+                .encodeOneByteArray(tokenTotalSupply)
+                .toBytes();
+        AvmRule.ResultWrapper result = kernel.deploy(avmRule, deployer, avmRule.getDappBytes(ATSTokenContract.class, data));
+        Assert.assertTrue(result.getReceiptStatus().isSuccess());
+        Address tokenAddress = result.getDappAddress();
+        Address recipient = avmRule.getRandomAddress(BigInteger.ZERO);
+        Address operator = avmRule.getRandomAddress(BigInteger.ZERO);
+        Assert.assertTrue(kernel.call(avmRule, deployer, tokenAddress, encoder.encodeOneString("send").encodeOneAddress(recipient)
+                .encodeOneByteArray(BigInteger.TEN.toByteArray()).encodeOneByteArray(new byte[0]).toBytes()).getReceiptStatus().isSuccess());
+        Assert.assertTrue(kernel.call(avmRule, deployer, tokenAddress, encoder.encodeOneString("authorizeOperator").encodeOneAddress(operator).toBytes()).getReceiptStatus().isSuccess());
+        Assert.assertTrue(kernel.call(avmRule, deployer, tokenAddress, encoder.encodeOneString("revokeOperator").encodeOneAddress(operator).toBytes()).getReceiptStatus().isSuccess());
+
+        assertEquals(1, kernel.get("send", "calls"));
+        //the debited balance of the creator and the new balance of the recipient
+        Assert.assertTrue(kernel.get("send", "storageWrites") >= 2);
+        assertEquals(1, kernel.get("send", "logs"));
+        assertEquals(kernel.get("send", "logBytes"), kernel.get("Sent", "logBytes"));
+        assertEquals(1, kernel.get("authorizeOperator", "calls"));
+        assertEquals(1, kernel.get("AuthorizedOperator", "logs"));
+        assertEquals(1, kernel.get("RevokedOperator", "logs"));
+        assertEquals(1, kernel.get("ATSTokenCreated", "logs"));
+        assertEquals(4, kernel.get(InstrumentedKernel.TOTAL, "calls"));
+        assertEquals(4, kernel.get(InstrumentedKernel.TOTAL, "logs"));
+        Assert.assertTrue(kernel.get(InstrumentedKernel.TOTAL, "storageReads") >= kernel.get("send", "storageReads"));
+        kernel.dump(new java.io.File("target/instrumentation.json"));
+    }
+
+    /**
+     * Reads answer for a holder of the single-record layout without writing storage, the first change migrates it.
+     */
+    @Test
+    public void testLegacyTokenHolder() {
+        InstrumentedKernel kernel = new InstrumentedKernel();
+        avmRule.kernel = kernel;
+        ABIStreamingEncoder encoder = new ABIStreamingEncoder();
+        byte[] data = encoder.encodeOneString(tokenName)
+                .encodeOneString(tokenSymbol)
+                .encodeOneInteger(tokenGranularity)
+                .encodeOneByteArray(tokenTotalSupply)
+                .toBytes();
+        Address tokenAddress = kernel.deploy(avmRule, deployer, avmRule.getDappBytes(ATSTokenContract.class, data)).getDappAddress();
+        Address legacyHolder = avmRule.getRandomAddress(BigInteger.ZERO);
+        Address operator = avmRule.getRandomAddress(BigInteger.TEN.pow(20));
+        Address recipient = avmRule.getRandomAddress(BigInteger.ZERO);
+        org.aion.types.Address contract = org.aion.types.Address.wrap(tokenAddress.toByteArray());
+        kernel.putStorage(contract, legacyHolder.toByteArray(),
+                AionBuffer.allocate(32 + Address.LENGTH).put32ByteInt(BigInteger.valueOf(77)).putAddress(operator).getArray());
+
+        AvmRule.ResultWrapper result = kernel.call(avmRule, deployer, tokenAddress, encoder.encodeOneString("getBalanceOf").encodeOneAddress(legacyHolder).toBytes());
+        assertEquals("77", result.getDecodedReturnData());
+        result = kernel.call(avmRule, deployer, tokenAddress, encoder.encodeOneString("isOperatorFor").encodeOneAddress(operator).encodeOneAddress(legacyHolder).toBytes());
+        assertEquals(true, result.getDecodedReturnData());
+        result = kernel.call(avmRule, deployer, tokenAddress, encoder.encodeOneString("getOperatorCount").encodeOneAddress(legacyHolder).toBytes());
+        assertEquals(1, result.getDecodedReturnData());
+        result = kernel.call(avmRule, deployer, tokenAddress, encoder.encodeOneString("getOperators").encodeOneAddress(legacyHolder).encodeOneInteger(0).encodeOneInteger(10).toBytes());
+        assertArrayEquals(operator.toByteArray(), (byte[]) result.getDecodedReturnData());
+        result = kernel.call(avmRule, deployer, tokenAddress, encoder.encodeOneString("getBalanceOf").encodeOneAddress(recipient).toBytes());
+        assertEquals("0", result.getDecodedReturnData());
+        for (String callable : new String[]{"getBalanceOf", "isOperatorFor", "getOperatorCount", "getOperators"}) {
+            assertEquals(callable, 0, kernel.get(callable, "storageWrites"));
+        }
+        Assert.assertTrue(kernel.getStorage(contract, legacyHolder.toByteArray()).length > 0);
+
+        //the operator sends for the holder, which migrates it
+        result = kernel.call(avmRule, operator, tokenAddress, encoder.encodeOneString("operatorSend").encodeOneAddress(legacyHolder).encodeOneAddress(recipient)
+                .encodeOneByteArray(BigInteger.valueOf(7).toByteArray()).encodeOneByteArray(new byte[0]).encodeOneByteArray(new byte[0]).toBytes());
+        Assert.assertTrue(result.getReceiptStatus().isSuccess());
+        byte[] legacyInformation = kernel.getStorage(contract, legacyHolder.toByteArray());
+        Assert.assertTrue(legacyInformation == null || legacyInformation.length == 0);
+        result = kernel.call(avmRule, deployer, tokenAddress, encoder.encodeOneString("getBalanceOf").encodeOneAddress(legacyHolder).toBytes());
+        assertEquals("70", result.getDecodedReturnData());
+        result = kernel.call(avmRule, deployer, tokenAddress, encoder.encodeOneString("isOperatorFor").encodeOneAddress(operator).encodeOneAddress(legacyHolder).toBytes());
+        assertEquals(true, result.getDecodedReturnData());
+    }
+
 
 }
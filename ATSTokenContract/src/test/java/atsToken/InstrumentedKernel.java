@@ -0,0 +1,167 @@
+package atsToken;
+
+import avm.Address;
+import org.aion.avm.tooling.AvmRule;
+import org.aion.avm.userlib.abi.ABIDecoder;
+import org.aion.kernel.TestingKernel;
+import org.aion.vm.api.interfaces.IExecutionLog;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Supplier;
+
+/**
+ * Kernel for AvmRule which counts, for each callable run through it, the storage reads and writes reaching the kernel
+ * and the logs of the transaction, so that the contract under measurement is the deployed one.
+ * Install it before the first transaction, with avmRule.kernel = new InstrumentedKernel().
+ * Reads are those the transaction does not serve from its own writes, writes are counted once per changed key,
+ * when the transaction commits. Logs are also counted for their event, named by their first topic.
+ */
+public class InstrumentedKernel extends TestingKernel {
+    public static final String TOTAL = "total";
+    public static final String DEPLOY = "<deploy>";
+
+    private static final String[] COUNTERS = {"calls", "storageReads", "storageReadBytes", "storageWrites", "storageWriteBytes", "logs", "logBytes"};
+    private static final int CALLS = 0;
+    private static final int STORAGE_READS = 1;
+    private static final int STORAGE_WRITES = 3;
+    private static final int LOGS = 5;
+    private static final String[] HISTOGRAMS = {"storageReadSizes", "storageWriteSizes", "logSizes"};
+    private static final int[] SIZE_BUCKETS = {0, 8, 16, 32, 64, 128, 256, Integer.MAX_VALUE};
+    private static final int COUNTER_COUNT = COUNTERS.length + HISTOGRAMS.length * SIZE_BUCKETS.length;
+
+    private final Map<String, long[]> counters = new TreeMap<>();
+    private String callable; //callable of the running transaction, null outside of deploy and call
+
+    public AvmRule.ResultWrapper deploy(AvmRule avmRule, Address from, byte[] dappBytes) {
+        return run(DEPLOY, () -> avmRule.deploy(from, BigInteger.ZERO, dappBytes));
+    }
+
+    public AvmRule.ResultWrapper call(AvmRule avmRule, Address from, Address contract, byte[] data) {
+        return run(new ABIDecoder(data).decodeMethodName(), () -> avmRule.call(from, contract, BigInteger.ZERO, data));
+    }
+
+    private AvmRule.ResultWrapper run(String callable, Supplier<AvmRule.ResultWrapper> transaction) {
+        this.callable = callable;
+        getCounters(callable)[CALLS]++;
+        getCounters(TOTAL)[CALLS]++;
+        AvmRule.ResultWrapper result;
+        try {
+            result = transaction.get();
+        } finally {
+            this.callable = null;
+        }
+        for (IExecutionLog log : result.getLogs()) {
+            int length = log.getData().length;
+            for (byte[] topic : log.getTopics()) {
+                length += topic.length;
+            }
+            count(callable, getEventName(log.getTopics().get(0)), LOGS, length);
+        }
+        return result;
+    }
+
+    @Override
+    public byte[] getStorage(org.aion.types.Address address, byte[] key) {
+        byte[] value = super.getStorage(address, key);
+        if (callable != null) {
+            count(callable, null, STORAGE_READS, value == null ? 0 : value.length);
+        }
+        return value;
+    }
+
+    @Override
+    public void putStorage(org.aion.types.Address address, byte[] key, byte[] value) {
+        super.putStorage(address, key, value);
+        if (callable != null) {
+            count(callable, null, STORAGE_WRITES, value.length);
+        }
+    }
+
+    /**
+     * @param name    callable, event or TOTAL
+     * @param counter one of calls, storageReads, storageReadBytes, storageWrites, storageWriteBytes, logs, logBytes
+     * @return the counter, 0 if the name was never counted
+     */
+    public long get(String name, String counter) {
+        long[] nameCounters = counters.get(name);
+        for (int i = 0; nameCounters != null && i < COUNTERS.length; i++) {
+            if (COUNTERS[i].equals(counter)) {
+                return nameCounters[i];
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * The count is at countIndex, the bytes right after it, and each histogram follows the counters in their order.
+     */
+    private void count(String callable, String event, int countIndex, int length) {
+        int bucket = 0;
+        while (length > SIZE_BUCKETS[bucket]) {
+            bucket++;
+        }
+        int sizeIndex = COUNTERS.length + (countIndex - STORAGE_READS) / 2 * SIZE_BUCKETS.length + bucket;
+        for (String name : new String[]{TOTAL, callable, event}) {
+            if (name != null) {
+                long[] nameCounters = getCounters(name);
+                nameCounters[countIndex]++;
+                nameCounters[countIndex + 1] += length;
+                nameCounters[sizeIndex]++;
+            }
+        }
+    }
+
+    private long[] getCounters(String name) {
+        return counters.computeIfAbsent(name, key -> new long[COUNTER_COUNT]);
+    }
+
+    /**
+     * Topics are padded with zeros to 32 bytes.
+     */
+    private static String getEventName(byte[] topic) {
+        int length = topic.length;
+        while (length > 0 && topic[length - 1] == 0) {
+            length--;
+        }
+        return new String(topic, 0, length, StandardCharsets.UTF_8);
+    }
+
+    public String toJson() {
+        StringBuilder json = new StringBuilder("{");
+        String nameSeparator = "\n";
+        for (Map.Entry<String, long[]> entry : counters.entrySet()) {
+            long[] nameCounters = entry.getValue();
+            json.append(nameSeparator).append("  \"").append(entry.getKey()).append("\": {");
+            for (int i = 0; i < COUNTERS.length; i++) {
+                json.append(i == 0 ? "" : ", ").append('"').append(COUNTERS[i]).append("\": ").append(nameCounters[i]);
+            }
+            for (int histogram = 0; histogram < HISTOGRAMS.length; histogram++) {
+                json.append(", \"").append(HISTOGRAMS[histogram]).append("\": {");
+                for (int bucket = 0; bucket < SIZE_BUCKETS.length; bucket++) {
+                    String bound = SIZE_BUCKETS[bucket] == Integer.MAX_VALUE ? "max" : String.valueOf(SIZE_BUCKETS[bucket]);
+                    long count = nameCounters[COUNTERS.length + histogram * SIZE_BUCKETS.length + bucket];
+                    json.append(bucket == 0 ? "" : ", ").append('"').append(bound).append("\": ").append(count);
+                }
+                json.append('}');
+            }
+            json.append('}');
+            nameSeparator = ",\n";
+        }
+        return json.append("\n}\n").toString();
+    }
+
+    public void dump(File file) throws IOException {
+        file.getParentFile().mkdirs();
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+            writer.write(toJson());
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package atsToken;
+
+import avm.Address;
+import avm.Blockchain;
+import org.aion.avm.tooling.abi.Callable;
+import org.aion.avm.userlib.abi.ABIStreamingEncoder;
+
+import java.math.BigInteger;
+
+/**
+ * Contract registering the token hooks with a token, counting the tokensToSend and tokensReceived calls it gets.
+ */
+public class TokenHooksContract {
+    private static int tokensToSendCalls;
+    private static int tokensReceivedCalls;
+
+    @Callable
+    public static void registerTokenHooks(Address token, boolean tokensSender, boolean tokensRecipient) {
+        byte[] data = new ABIStreamingEncoder()
+                .encodeOneString("registerTokenHooks")
+                .encodeOneBoolean(tokensSender)
+                .encodeOneBoolean(tokensRecipient)
+                .toBytes();
+        Blockchain.require(Blockchain.call(token, BigInteger.ZERO, data, Blockchain.getRemainingEnergy()).isSuccess());
+    }
+
+    @Callable
+    public static void tokensToSend(Address operator, Address from, Address to, byte[] amount, byte[] userData, byte[] operatorData) {
+        tokensToSendCalls++;
+    }
+
+    @Callable
+    public static void tokensReceived(Address operator, Address from, Address to, byte[] amount, byte[] userData, byte[] operatorData) {
+        tokensReceivedCalls++;
+    }
+
+    @Callable
+    public static int getTokensToSendCalls() {
+        return tokensToSendCalls;
+    }
+
+    @Callable
+    public static int getTokensReceivedCalls() {
+        return tokensReceivedCalls;
+    }
+}
@@ -0,0 +1,244 @@
+package atsToken;
+
+import avm.Address;
+import org.aion.avm.core.AvmConfiguration;
+import org.aion.avm.core.CommonAvmFactory;
+import org.aion.avm.tooling.AvmRule;
+import org.aion.avm.tooling.StandardCapabilities;
+import org.aion.avm.userlib.abi.ABIStreamingEncoder;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.BenchmarkParams;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Throughput and latency of the token holder callables, run on the embedded AVM through AvmRule.
+ * Every holder has operatorCount operators, plus the benchmark operator used by operatorSend and isOperatorFor,
+ * isNotOperatorFor queries an address operating for none of them.
+ * Calls go round-robin over the holders. Every measured call must succeed, a failed one fails the iteration,
+ * so that a reverted call is never measured as a fast one.
+ * The measured calls run through an InstrumentedKernel, whose counters each trial dumps to
+ * target/instrumentation/&lt;benchmark&gt;-&lt;operatorCount&gt;-&lt;holderCount&gt;-&lt;dataLength&gt;.json.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ATSTokenContractBenchmark {
+    private static final BigInteger HOLDER_ENERGY_BALANCE = BigInteger.TEN.pow(24);
+    private static final BigInteger HOLDER_TOKENS = BigInteger.TEN.pow(18);
+    private static final int RECORDS_PER_CALL = 32;
+    private static final int OPERATORS_PER_CALL = 16; //an authorized operator costs about 80K energy, AvmRule calls get 2M
+
+    @Param({"0", "1", "16", "256"})
+    public int operatorCount;
+
+    @Param({"1", "100"})
+    public int holderCount;
+
+    @Param({"0", "32", "1024"})
+    public int dataLength;
+
+    private AvmRule avmRule;
+    private InstrumentedKernel kernel;
+    private Address deployer;
+    private Address contractAddress;
+    private Address[] holders;
+    private Address operator;
+    private Address nonOperator;
+    private byte[] data;
+    private int nextHolder;
+
+    @Setup(Level.Trial)
+    public void deployDapp() {
+        avmRule = new AvmRule(false);
+        avmRule.avm = CommonAvmFactory.buildAvmInstanceForConfiguration(new StandardCapabilities(), new AvmConfiguration());
+        kernel = new InstrumentedKernel();
+        avmRule.kernel = kernel;
+        deployer = avmRule.getPreminedAccount();
+        byte[] deployData = new ABIStreamingEncoder()
+                .encodeOneString("JENNIJUJU")
+                .encodeOneString("J3N")
+                .encodeOneInteger(1)
+                .encodeOneByteArray(HOLDER_TOKENS.multiply(BigInteger.valueOf(holderCount + 1)).toByteArray())
+                .toBytes();
+        contractAddress = avmRule.deploy(deployer, BigInteger.ZERO, avmRule.getDappBytes(ATSTokenContract.class, deployData)).getDappAddress();
+
+        holders = new Address[holderCount];
+        byte[][] amounts = new byte[holderCount][];
+        for (int i = 0; i < holderCount; i++) {
+            holders[i] = avmRule.getRandomAddress(HOLDER_ENERGY_BALANCE);
+            amounts[i] = HOLDER_TOKENS.toByteArray();
+        }
+        for (int start = 0; start < holderCount; start += RECORDS_PER_CALL) {
+            int end = Math.min(holderCount, start + RECORDS_PER_CALL);
+            call(deployer, new ABIStreamingEncoder().encodeOneString("batchSend")
+                    .encodeOneAddressArray(Arrays.copyOfRange(holders, start, end))
+                    .encodeOne2DByteArray(Arrays.copyOfRange(amounts, start, end))
+                    .encodeOneByteArray(new byte[0]));
+        }
+
+        Address[] operators = new Address[operatorCount];
+        for (int i = 0; i < operatorCount; i++) {
+            operators[i] = avmRule.getRandomAddress(BigInteger.ZERO);
+        }
+        operator = avmRule.getRandomAddress(HOLDER_ENERGY_BALANCE);
+        nonOperator = avmRule.getRandomAddress(BigInteger.ZERO);
+        for (Address holder : holders) {
+            for (int start = 0; start < operatorCount; start += OPERATORS_PER_CALL) {
+                call(holder, new ABIStreamingEncoder().encodeOneString("authorizeOperators")
+                        .encodeOneAddressArray(Arrays.copyOfRange(operators, start, Math.min(operatorCount, start + OPERATORS_PER_CALL))));
+            }
+            call(holder, new ABIStreamingEncoder().encodeOneString("authorizeOperator").encodeOneAddress(operator));
+        }
+        data = new byte[dataLength];
+    }
+
+    @TearDown(Level.Trial)
+    public void shutdown(BenchmarkParams params) throws IOException {
+        avmRule.avm.shutdown();
+        String benchmark = params.getBenchmark().substring(params.getBenchmark().lastIndexOf('.') + 1);
+        kernel.dump(new File("target/instrumentation/" + benchmark + "-" + operatorCount + "-" + holderCount + "-" + dataLength + ".json"));
+    }
+
+    @Benchmark
+    public AvmRule.ResultWrapper send() {
+        int holder = nextHolder();
+        return measure(holders[holder], new ABIStreamingEncoder().encodeOneString("send")
+                .encodeOneAddress(recipientOf(holder))
+                .encodeOneByteArray(BigInteger.ONE.toByteArray())
+                .encodeOneByteArray(data));
+    }
+
+    @Benchmark
+    public AvmRule.ResultWrapper operatorSend() {
+        int holder = nextHolder();
+        return measure(operator, new ABIStreamingEncoder().encodeOneString("operatorSend")
+                .encodeOneAddress(holders[holder])
+                .encodeOneAddress(recipientOf(holder))
+                .encodeOneByteArray(BigInteger.ONE.toByteArray())
+                .encodeOneByteArray(data)
+                .encodeOneByteArray(data));
+    }
+
+    @Benchmark
+    public AvmRule.ResultWrapper isOperatorFor() {
+        return returned(isOperatorFor(operator), true);
+    }
+
+    /**
+     * The query of an address which operates for no holder, which has to look past all the operators of the holder.
+     */
+    @Benchmark
+    public AvmRule.ResultWrapper isNotOperatorFor() {
+        return returned(isOperatorFor(nonOperator), false);
+    }
+
+    @Benchmark
+    public AvmRule.ResultWrapper authorizeOperator(RevokedOperator revokedOperator) {
+        return measure(revokedOperator.holder, new ABIStreamingEncoder().encodeOneString("authorizeOperator")
+                .encodeOneAddress(revokedOperator.operator));
+    }
+
+    @Benchmark
+    public AvmRule.ResultWrapper revokeOperator(AuthorizedOperator authorizedOperator) {
+        return measure(authorizedOperator.holder, new ABIStreamingEncoder().encodeOneString("revokeOperator")
+                .encodeOneAddress(authorizedOperator.operator));
+    }
+
+    /**
+     * An operator which the next holder has not authorized, revoked again before each call.
+     */
+    @State(Scope.Thread)
+    public static class RevokedOperator {
+        private ATSTokenContractBenchmark benchmark;
+        private Address operator;
+        private Address holder;
+
+        //only the trial setup takes the benchmark state, JMH 1.21 generates code which does not compile when both do
+        @Setup(Level.Trial)
+        public void createOperator(ATSTokenContractBenchmark benchmark) {
+            this.benchmark = benchmark;
+            operator = benchmark.avmRule.getRandomAddress(BigInteger.ZERO);
+        }
+
+        @Setup(Level.Invocation)
+        public void revoke() {
+            holder = benchmark.holders[benchmark.nextHolder()];
+            benchmark.call(holder, new ABIStreamingEncoder().encodeOneString("revokeOperator").encodeOneAddress(operator));
+        }
+    }
+
+    /**
+     * An operator which the next holder has authorized, authorized again before each call.
+     */
+    @State(Scope.Thread)
+    public static class AuthorizedOperator {
+        private ATSTokenContractBenchmark benchmark;
+        private Address operator;
+        private Address holder;
+
+        //only the trial setup takes the benchmark state, JMH 1.21 generates code which does not compile when both do
+        @Setup(Level.Trial)
+        public void createOperator(ATSTokenContractBenchmark benchmark) {
+            this.benchmark = benchmark;
+            operator = benchmark.avmRule.getRandomAddress(BigInteger.ZERO);
+        }
+
+        @Setup(Level.Invocation)
+        public void authorize() {
+            holder = benchmark.holders[benchmark.nextHolder()];
+            benchmark.call(holder, new ABIStreamingEncoder().encodeOneString("authorizeOperator").encodeOneAddress(operator));
+        }
+    }
+
+    private int nextHolder() {
+        int holder = nextHolder;
+        nextHolder = (nextHolder + 1) % holderCount;
+        return holder;
+    }
+
+    private Address recipientOf(int holder) {
+        return holderCount == 1 ? deployer : holders[(holder + 1) % holderCount];
+    }
+
+    private AvmRule.ResultWrapper isOperatorFor(Address operator) {
+        return measure(deployer, new ABIStreamingEncoder().encodeOneString("isOperatorFor")
+                .encodeOneAddress(operator)
+                .encodeOneAddress(holders[nextHolder()]));
+    }
+
+    /**
+     * A measured call, counted by the kernel.
+     */
+    private AvmRule.ResultWrapper measure(Address from, ABIStreamingEncoder encoder) {
+        return succeeded(kernel.call(avmRule, from, contractAddress, encoder.toBytes()));
+    }
+
+    /**
+     * A setup call, which the kernel does not count.
+     */
+    private void call(Address from, ABIStreamingEncoder encoder) {
+        succeeded(avmRule.call(from, contractAddress, BigInteger.ZERO, encoder.toBytes()));
+    }
+
+    private static AvmRule.ResultWrapper succeeded(AvmRule.ResultWrapper result) {
+        if (!result.getReceiptStatus().isSuccess()) {
+            throw new IllegalStateException("Benchmark call failed: " + result.getReceiptStatus());
+        }
+        return result;
+    }
+
+    private static AvmRule.ResultWrapper returned(AvmRule.ResultWrapper result, boolean expected) {
+        if (!Boolean.valueOf(expected).equals(result.getDecodedReturnData())) {
+            throw new IllegalStateException("Benchmark call returned " + result.getDecodedReturnData() + " instead of " + expected);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,513 @@
+package atsToken;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.util.Arrays;
+
+/**
+ * Off-chain index of the balances and operators of an ATS token contract, built from the logs of its events:
+ * ATSTokenCreated, Sent, AuthorizedOperator, RevokedOperator and RevokedAllOperators.
+ * Logs are fed in chain order, each at its position (block number, index of the log in the block). The position of
+ * the last log fed is the cursor, logs at or before it are skipped, so that after loading a checkpoint the indexer can
+ * be fed again from the block of its cursor. Only the logs of successful transactions are to be fed.
+ * Addresses are mapped to int ids, balances are 256-bit amounts held as longs by id, and operator authorizations are
+ * held by (holder id, operator id), so that indexing a log allocates nothing but the growth of these tables.
+ * Operators are tracked like the contract does: an explicit authorization is valid in the authorization epoch of its
+ * holder, RevokedAllOperators starts a new epoch. Default operators are not logged, they are given to the indexer.
+ */
+public class ATSTokenIndexer {
+    private static final int ADDRESS_LENGTH = 32;
+    private static final int AMOUNT_LENGTH = 32;
+    private static final int WORDS = 4; //longs per address or amount, most significant first
+    private static final int CHECKPOINT_VERSION = 1;
+
+    private static final byte[] ATS_TOKEN_CREATED_TOPIC = "ATSTokenCreated".getBytes();
+    private static final byte[] SENT_TOPIC = "Sent".getBytes();
+    private static final byte[] AUTHORIZED_OPERATOR_TOPIC = "AuthorizedOperator".getBytes();
+    private static final byte[] REVOKED_OPERATOR_TOPIC = "RevokedOperator".getBytes();
+    private static final byte[] REVOKED_ALL_OPERATORS_TOPIC = "RevokedAllOperators".getBytes();
+
+    /**
+     * Authorization of an operator for a holder: REVOKED, OPTED_OUT of a default operator,
+     * or the authorization epoch of the holder plus one.
+     */
+    private static final int REVOKED = 0;
+    private static final int OPTED_OUT = -1;
+
+    private final byte[] tokenAddress;
+    private final AddressTable addresses = new AddressTable();
+    private final LongIntMap authorizations = new LongIntMap();
+    private int defaultOperatorCount; //default operators have the first ids
+    private byte[] totalSupply;
+    private long[] balances = new long[16 * WORDS];
+    private int[] authorizationEpochs = new int[16];
+    private int[] operatorCounts = new int[16];
+    private long cursorBlockNumber = -1;
+    private int cursorLogIndex = -1;
+
+    /**
+     * @param tokenAddress     address of the token contract, logs of other contracts are skipped
+     * @param defaultOperators default operators of the token contract, see getDefaultOperators
+     */
+    public ATSTokenIndexer(byte[] tokenAddress, byte[][] defaultOperators) {
+        requireAddress(tokenAddress);
+        this.tokenAddress = tokenAddress.clone();
+        for (byte[] defaultOperator : defaultOperators) {
+            getId(defaultOperator);
+        }
+        defaultOperatorCount = addresses.size;
+    }
+
+    /**
+     * Index the log at the given position, if it is after the cursor, and move the cursor to it.
+     *
+     * @param blockNumber number of the block of the log
+     * @param logIndex    index of the log in its block
+     * @param address     address of the contract which logged it
+     * @param topics      topics, as padded to 32 bytes by the AVM
+     * @param data        data
+     * @return true if the log is an event of the token which changed the index
+     */
+    public boolean index(long blockNumber, int logIndex, byte[] address, byte[][] topics, byte[] data) {
+        if (blockNumber < cursorBlockNumber || (blockNumber == cursorBlockNumber && logIndex <= cursorLogIndex)) {
+            return false;
+        }
+        boolean indexed = Arrays.equals(tokenAddress, address) && topics.length > 0 && indexEvent(topics, data);
+        cursorBlockNumber = blockNumber;
+        cursorLogIndex = logIndex;
+        return indexed;
+    }
+
+    public long getCursorBlockNumber() {
+        return cursorBlockNumber;
+    }
+
+    public int getCursorLogIndex() {
+        return cursorLogIndex;
+    }
+
+    /**
+     * @return the total supply, null before ATSTokenCreated is indexed
+     */
+    public BigInteger getTotalSupply() {
+        return totalSupply == null ? null : new BigInteger(totalSupply);
+    }
+
+    public BigInteger getBalance(byte[] tokenHolder) {
+        int holder = addresses.find(tokenHolder);
+        if (holder < 0) {
+            return BigInteger.ZERO;
+        }
+        byte[] balance = new byte[AMOUNT_LENGTH];
+        for (int word = 0; word < WORDS; word++) {
+            putLong(balance, word * Long.BYTES, balances[holder * WORDS + word]);
+        }
+        return new BigInteger(balance);
+    }
+
+    public boolean isOperatorFor(byte[] operatorAddress, byte[] tokenHolder) {
+        int operator = addresses.find(operatorAddress);
+        if (operator < 0) {
+            return false;
+        }
+        int holder = addresses.find(tokenHolder);
+        if (isDefaultOperator(operator)) {
+            return holder < 0 || authorizations.get(getAuthorizationKey(holder, operator)) != OPTED_OUT;
+        }
+        return holder >= 0 && authorizations.get(getAuthorizationKey(holder, operator)) == authorizationEpochs[holder] + 1;
+    }
+
+    /**
+     * @return the number of operators the holder authorized, not counting default operators
+     */
+    public int getOperatorCount(byte[] tokenHolder) {
+        int holder = addresses.find(tokenHolder);
+        return holder < 0 ? 0 : operatorCounts[holder];
+    }
+
+    /**
+     * Write the cursor and every table, see loadCheckpoint.
+     */
+    public void saveCheckpoint(OutputStream out) throws IOException {
+        DataOutputStream checkpoint = new DataOutputStream(out);
+        checkpoint.writeInt(CHECKPOINT_VERSION);
+        checkpoint.write(tokenAddress);
+        checkpoint.writeLong(cursorBlockNumber);
+        checkpoint.writeInt(cursorLogIndex);
+        checkpoint.writeBoolean(totalSupply != null);
+        if (totalSupply != null) {
+            checkpoint.write(totalSupply);
+        }
+        checkpoint.writeInt(defaultOperatorCount);
+        checkpoint.writeInt(addresses.size);
+        for (int id = 0; id < addresses.size; id++) {
+            for (int word = 0; word < WORDS; word++) {
+                checkpoint.writeLong(addresses.words[id * WORDS + word]);
+            }
+            for (int word = 0; word < WORDS; word++) {
+                checkpoint.writeLong(balances[id * WORDS + word]);
+            }
+            checkpoint.writeInt(authorizationEpochs[id]);
+            checkpoint.writeInt(operatorCounts[id]);
+        }
+        checkpoint.writeInt(authorizations.size);
+        for (int slot = 0; slot < authorizations.keys.length; slot++) {
+            if (authorizations.keys[slot] != LongIntMap.EMPTY) {
+                checkpoint.writeLong(authorizations.keys[slot]);
+                checkpoint.writeInt(authorizations.values[slot]);
+            }
+        }
+        checkpoint.flush();
+    }
+
+    /**
+     * Resume from a checkpoint written by saveCheckpoint, feed it the logs from the block of its cursor on.
+     */
+    public static ATSTokenIndexer loadCheckpoint(InputStream in) throws IOException {
+        DataInputStream checkpoint = new DataInputStream(in);
+        if (checkpoint.readInt() != CHECKPOINT_VERSION) {
+            throw new IOException("Unsupported checkpoint version");
+        }
+        byte[] tokenAddress = new byte[ADDRESS_LENGTH];
+        checkpoint.readFully(tokenAddress);
+        ATSTokenIndexer indexer = new ATSTokenIndexer(tokenAddress, new byte[0][]);
+        indexer.cursorBlockNumber = checkpoint.readLong();
+        indexer.cursorLogIndex = checkpoint.readInt();
+        if (checkpoint.readBoolean()) {
+            indexer.totalSupply = new byte[AMOUNT_LENGTH];
+            checkpoint.readFully(indexer.totalSupply);
+        }
+        indexer.defaultOperatorCount = checkpoint.readInt();
+        int addressCount = checkpoint.readInt();
+        byte[] address = new byte[ADDRESS_LENGTH];
+        for (int id = 0; id < addressCount; id++) {
+            checkpoint.readFully(address);
+            indexer.getId(address);
+            for (int word = 0; word < WORDS; word++) {
+                indexer.balances[id * WORDS + word] = checkpoint.readLong();
+            }
+            indexer.authorizationEpochs[id] = checkpoint.readInt();
+            indexer.operatorCounts[id] = checkpoint.readInt();
+        }
+        int authorizationCount = checkpoint.readInt();
+        for (int i = 0; i < authorizationCount; i++) {
+            indexer.authorizations.put(checkpoint.readLong(), checkpoint.readInt());
+        }
+        return indexer;
+    }
+
+    private boolean indexEvent(byte[][] topics, byte[] data) {
+        byte[] event = topics[0];
+        if (isTopic(event, SENT_TOPIC)) {
+            requireTopics(topics, 4);
+            requireLength(data, AMOUNT_LENGTH);
+            int from = getId(topics[2]);
+            int to = getId(topics[3]);
+            debit(from, data, 0);
+            credit(to, data, 0);
+        } else if (isTopic(event, AUTHORIZED_OPERATOR_TOPIC)) {
+            requireTopics(topics, 3);
+            authorizeOperator(getId(topics[2]), getId(topics[1]));
+        } else if (isTopic(event, REVOKED_OPERATOR_TOPIC)) {
+            requireTopics(topics, 3);
+            revokeOperator(getId(topics[2]), getId(topics[1]));
+        } else if (isTopic(event, REVOKED_ALL_OPERATORS_TOPIC)) {
+            requireTopics(topics, 2);
+            int holder = getId(topics[1]);
+            authorizationEpochs[holder]++;
+            operatorCounts[holder] = 0;
+        } else if (isTopic(event, ATS_TOKEN_CREATED_TOPIC)) {
+            requireTopics(topics, 3);
+            indexTokenCreated(topics[1], getId(topics[2]), data);
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * The creator holds the total supply less the genesis allocations, packed as (address, 32-byte amount) pairs.
+     */
+    private void indexTokenCreated(byte[] supply, int creator, byte[] genesisAllocations) {
+        requireLength(supply, AMOUNT_LENGTH);
+        if (genesisAllocations.length % (ADDRESS_LENGTH + AMOUNT_LENGTH) != 0) {
+            throw new IllegalArgumentException("Malformed genesis allocations");
+        }
+        totalSupply = supply.clone();
+        credit(creator, supply, 0);
+        for (int offset = 0; offset < genesisAllocations.length; offset += ADDRESS_LENGTH + AMOUNT_LENGTH) {
+            int holder = getId(genesisAllocations, offset);
+            debit(creator, genesisAllocations, offset + ADDRESS_LENGTH);
+            credit(holder, genesisAllocations, offset + ADDRESS_LENGTH);
+        }
+    }
+
+    private void authorizeOperator(int holder, int operator) {
+        long key = getAuthorizationKey(holder, operator);
+        if (isDefaultOperator(operator)) {
+            authorizations.put(key, REVOKED);
+        } else if (authorizations.get(key) != authorizationEpochs[holder] + 1) {
+            authorizations.put(key, authorizationEpochs[holder] + 1);
+            operatorCounts[holder]++;
+        }
+    }
+
+    private void revokeOperator(int holder, int operator) {
+        long key = getAuthorizationKey(holder, operator);
+        if (isDefaultOperator(operator)) {
+            authorizations.put(key, OPTED_OUT);
+        } else if (authorizations.get(key) == authorizationEpochs[holder] + 1) {
+            authorizations.put(key, REVOKED);
+            operatorCounts[holder]--;
+        }
+    }
+
+    private boolean isDefaultOperator(int operator) {
+        return operator < defaultOperatorCount;
+    }
+
+    private static long getAuthorizationKey(int holder, int operator) {
+        return ((long) holder << 32) | operator;
+    }
+
+    private void credit(int holder, byte[] amount, int offset) {
+        int index = holder * WORDS;
+        long carry = 0;
+        for (int word = WORDS - 1; word >= 0; word--) {
+            long balance = balances[index + word];
+            long sum = balance + getLong(amount, offset + word * Long.BYTES) + carry;
+            carry = Long.compareUnsigned(sum, balance) < 0 || (carry == 1 && sum == balance) ? 1 : 0;
+            balances[index + word] = sum;
+        }
+        if (carry != 0) {
+            throw new IllegalStateException("Balance overflow");
+        }
+    }
+
+    private void debit(int holder, byte[] amount, int offset) {
+        int index = holder * WORDS;
+        for (int word = 0; word < WORDS; word++) {
+            int comparison = Long.compareUnsigned(balances[index + word], getLong(amount, offset + word * Long.BYTES));
+            if (comparison < 0) {
+                throw new IllegalStateException("Balance below zero, logs are missing or out of order");
+            } else if (comparison > 0) {
+                break;
+            }
+        }
+        long borrow = 0;
+        for (int word = WORDS - 1; word >= 0; word--) {
+            long balance = balances[index + word];
+            long value = getLong(amount, offset + word * Long.BYTES);
+            balances[index + word] = balance - value - borrow;
+            borrow = Long.compareUnsigned(balance, value) < 0 || (borrow == 1 && balance == value) ? 1 : 0;
+        }
+    }
+
+    private int getId(byte[] address) {
+        requireAddress(address);
+        return getId(address, 0);
+    }
+
+    private int getId(byte[] address, int offset) {
+        int id = addresses.add(address, offset);
+        if (id >= authorizationEpochs.length) {
+            balances = Arrays.copyOf(balances, 2 * balances.length);
+            authorizationEpochs = Arrays.copyOf(authorizationEpochs, 2 * authorizationEpochs.length);
+            operatorCounts = Arrays.copyOf(operatorCounts, 2 * operatorCounts.length);
+        }
+        return id;
+    }
+
+    /**
+     * Topics shorter than 32 bytes are padded with zeros.
+     */
+    private static boolean isTopic(byte[] topic, byte[] name) {
+        if (topic.length < name.length) {
+            return false;
+        }
+        for (int i = 0; i < topic.length; i++) {
+            if (topic[i] != (i < name.length ? name[i] : 0)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void requireTopics(byte[][] topics, int count) {
+        if (topics.length != count) {
+            throw new IllegalArgumentException("Expected " + count + " topics, got " + topics.length);
+        }
+    }
+
+    private static void requireAddress(byte[] address) {
+        if (address.length != ADDRESS_LENGTH) {
+            throw new IllegalArgumentException("Malformed address");
+        }
+    }
+
+    private static void requireLength(byte[] data, int minimumLength) {
+        if (data.length < minimumLength) {
+            throw new IllegalArgumentException("Malformed log data");
+        }
+    }
+
+    private static long getLong(byte[] bytes, int offset) {
+        long value = 0;
+        for (int i = 0; i < Long.BYTES; i++) {
+            value = (value << 8) | (bytes[offset + i] & 0xFF);
+        }
+        return value;
+    }
+
+    private static void putLong(byte[] bytes, int offset, long value) {
+        for (int i = Long.BYTES - 1; i >= 0; i--) {
+            bytes[offset + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+
+
+    /*********************************************Tables*********************************************/
+    /**
+     * Ids of 32-byte addresses, given in order from 0. The addresses are held as longs by id,
+     * in an open addressing table of id + 1, 0 for an empty slot.
+     */
+    private static class AddressTable {
+        private long[] words = new long[16 * WORDS];
+        private int[] slots = new int[32];
+        private int size;
+
+        private int find(byte[] address) {
+            if (address.length != ADDRESS_LENGTH) {
+                return -1;
+            }
+            int mask = slots.length - 1;
+            for (int slot = hash(address, 0) & mask; slots[slot] != 0; slot = (slot + 1) & mask) {
+                if (matches(slots[slot] - 1, address, 0)) {
+                    return slots[slot] - 1;
+                }
+            }
+            return -1;
+        }
+
+        /**
+         * @return the id of the address, a new id if it had none
+         */
+        private int add(byte[] address, int offset) {
+            int mask = slots.length - 1;
+            int slot = hash(address, offset) & mask;
+            for (; slots[slot] != 0; slot = (slot + 1) & mask) {
+                if (matches(slots[slot] - 1, address, offset)) {
+                    return slots[slot] - 1;
+                }
+            }
+            int id = size++;
+            if (id * WORDS >= words.length) {
+                words = Arrays.copyOf(words, 2 * words.length);
+            }
+            for (int word = 0; word < WORDS; word++) {
+                words[id * WORDS + word] = getLong(address, offset + word * Long.BYTES);
+            }
+            slots[slot] = id + 1;
+            if (2 * size > slots.length) {
+                rehash();
+            }
+            return id;
+        }
+
+        private boolean matches(int id, byte[] address, int offset) {
+            for (int word = 0; word < WORDS; word++) {
+                if (words[id * WORDS + word] != getLong(address, offset + word * Long.BYTES)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private int hash(byte[] address, int offset) {
+            return mix(getLong(address, offset) ^ getLong(address, offset + 3 * Long.BYTES));
+        }
+
+        private void rehash() {
+            slots = new int[2 * slots.length];
+            int mask = slots.length - 1;
+            for (int id = 0; id < size; id++) {
+                int slot = mix(words[id * WORDS] ^ words[id * WORDS + 3]) & mask;
+                while (slots[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                slots[slot] = id + 1;
+            }
+        }
+    }
+
+    /**
+     * Open addressing map of long keys to int values, a missing key maps to 0. Keys can not be EMPTY.
+     */
+    private static class LongIntMap {
+        private static final long EMPTY = -1L;
+
+        private long[] keys = newKeys(64);
+        private int[] values = new int[64];
+        private int size;
+
+        private int get(long key) {
+            int mask = keys.length - 1;
+            for (int slot = mix(key) & mask; keys[slot] != EMPTY; slot = (slot + 1) & mask) {
+                if (keys[slot] == key) {
+                    return values[slot];
+                }
+            }
+            return 0;
+        }
+
+        private void put(long key, int value) {
+            int mask = keys.length - 1;
+            int slot = mix(key) & mask;
+            while (keys[slot] != EMPTY && keys[slot] != key) {
+                slot = (slot + 1) & mask;
+            }
+            if (keys[slot] == EMPTY) {
+                keys[slot] = key;
+                size++;
+            }
+            values[slot] = value;
+            if (2 * size > keys.length) {
+                rehash();
+            }
+        }
+
+        private void rehash() {
+            long[] oldKeys = keys;
+            int[] oldValues = values;
+            keys = newKeys(2 * oldKeys.length);
+            values = new int[2 * oldValues.length];
+            int mask = keys.length - 1;
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != EMPTY) {
+                    int slot = mix(oldKeys[i]) & mask;
+                    while (keys[slot] != EMPTY) {
+                        slot = (slot + 1) & mask;
+                    }
+                    keys[slot] = oldKeys[i];
+                    values[slot] = oldValues[i];
+                }
+            }
+        }
+
+        private static long[] newKeys(int length) {
+            long[] keys = new long[length];
+            Arrays.fill(keys, EMPTY);
+            return keys;
+        }
+    }
+
+    private static int mix(long key) {
+        key *= 0x9E3779B97F4A7C15L;
+        return (int) (key ^ (key >>> 32));
+    }
+}
@@ -0,0 +1,181 @@
+package atsToken;
+
+import avm.Address;
+import org.aion.avm.tooling.AvmRule;
+import org.aion.avm.userlib.abi.ABIStreamingEncoder;
+import org.aion.vm.api.interfaces.IExecutionLog;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Index the logs of the token contract run on the embedded AVM, one block per transaction, numbered from the deployment,
+ * and compare the index with the state of the contract.
+ */
+public class ATSTokenIndexerTest {
+    @Rule
+    public AvmRule avmRule = new AvmRule(false);
+
+    private Address deployer = avmRule.getPreminedAccount();
+    private Address defaultOperator = avmRule.getRandomAddress(BigInteger.TEN.pow(20));
+    private Address genesisHolder = avmRule.getRandomAddress(BigInteger.TEN.pow(20));
+    private Address tokenHolder = avmRule.getRandomAddress(BigInteger.TEN.pow(20));
+    private Address operator = avmRule.getRandomAddress(BigInteger.TEN.pow(20));
+    private Address contractAddress;
+    private ATSTokenIndexer indexer;
+    private List<AvmRule.ResultWrapper> blocks = new ArrayList<>();
+
+    @Before
+    public void deployDapp() {
+        byte[] data = new ABIStreamingEncoder().encodeOneString("JENNIJUJU")
+                .encodeOneString("J3N")
+                .encodeOneInteger(1)
+                .encodeOneByteArray(BigInteger.TEN.pow(30).toByteArray())
+                .encodeOneAddressArray(new Address[]{genesisHolder})
+                .encodeOne2DByteArray(new byte[][]{BigInteger.valueOf(1000).toByteArray()})
+                .encodeOneAddressArray(new Address[]{defaultOperator})
+                .toBytes();
+        AvmRule.ResultWrapper result = avmRule.deploy(deployer, BigInteger.ZERO, avmRule.getDappBytes(ATSTokenContract.class, data));
+        Assert.assertTrue(result.getReceiptStatus().isSuccess());
+        contractAddress = result.getDappAddress();
+        indexer = new ATSTokenIndexer(contractAddress.toByteArray(), new byte[][]{defaultOperator.toByteArray()});
+        addBlock(result);
+    }
+
+    @Test
+    public void testBalances() {
+        assertEquals(BigInteger.TEN.pow(30), indexer.getTotalSupply());
+        assertBalances();
+
+        call(deployer, new ABIStreamingEncoder().encodeOneString("send").encodeOneAddress(tokenHolder)
+                .encodeOneByteArray(BigInteger.valueOf(500).toByteArray()).encodeOneByteArray("memo".getBytes()));
+        call(genesisHolder, new ABIStreamingEncoder().encodeOneString("batchSend")
+                .encodeOneAddressArray(new Address[]{tokenHolder, deployer})
+                .encodeOne2DByteArray(new byte[][]{BigInteger.valueOf(7).toByteArray(), BigInteger.valueOf(3).toByteArray()})
+                .encodeOneByteArray(new byte[0]));
+        call(tokenHolder, new ABIStreamingEncoder().encodeOneString("authorizeOperator").encodeOneAddress(operator));
+        call(operator, new ABIStreamingEncoder().encodeOneString("operatorSend").encodeOneAddress(tokenHolder).encodeOneAddress(genesisHolder)
+                .encodeOneByteArray(BigInteger.valueOf(11).toByteArray()).encodeOneByteArray(new byte[0]).encodeOneByteArray("operator".getBytes()));
+        assertBalances();
+    }
+
+    @Test
+    public void testOperators() {
+        call(tokenHolder, new ABIStreamingEncoder().encodeOneString("authorizeOperators").encodeOneAddressArray(new Address[]{operator, deployer}));
+        assertOperators();
+        assertEquals(2, indexer.getOperatorCount(tokenHolder.toByteArray()));
+
+        call(tokenHolder, new ABIStreamingEncoder().encodeOneString("revokeOperator").encodeOneAddress(deployer));
+        assertOperators();
+        assertEquals(1, indexer.getOperatorCount(tokenHolder.toByteArray()));
+
+        call(tokenHolder, new ABIStreamingEncoder().encodeOneString("revokeAllOperators"));
+        assertOperators();
+        assertEquals(0, indexer.getOperatorCount(tokenHolder.toByteArray()));
+
+        //opting in again to the default operator
+        call(tokenHolder, new ABIStreamingEncoder().encodeOneString("authorizeOperator").encodeOneAddress(defaultOperator));
+        assertOperators();
+        Assert.assertTrue(indexer.isOperatorFor(defaultOperator.toByteArray(), tokenHolder.toByteArray()));
+    }
+
+    @Test
+    public void testCheckpoint() throws IOException {
+        call(deployer, new ABIStreamingEncoder().encodeOneString("send").encodeOneAddress(tokenHolder)
+                .encodeOneByteArray(BigInteger.valueOf(500).toByteArray()).encodeOneByteArray(new byte[0]));
+        ByteArrayOutputStream checkpoint = new ByteArrayOutputStream();
+        indexer.saveCheckpoint(checkpoint);
+        call(tokenHolder, new ABIStreamingEncoder().encodeOneString("authorizeOperator").encodeOneAddress(operator));
+        call(operator, new ABIStreamingEncoder().encodeOneString("operatorSend").encodeOneAddress(tokenHolder).encodeOneAddress(genesisHolder)
+                .encodeOneByteArray(BigInteger.valueOf(5).toByteArray()).encodeOneByteArray(new byte[0]).encodeOneByteArray(new byte[0]));
+
+        //restart from the checkpoint, feeding the blocks from the one of its cursor on
+        indexer = ATSTokenIndexer.loadCheckpoint(new ByteArrayInputStream(checkpoint.toByteArray()));
+        assertEquals(1, indexer.getCursorBlockNumber());
+        Assert.assertFalse(indexer.isOperatorFor(operator.toByteArray(), tokenHolder.toByteArray()));
+        for (int blockNumber = (int) indexer.getCursorBlockNumber(); blockNumber < blocks.size(); blockNumber++) {
+            index(blockNumber, blocks.get(blockNumber));
+        }
+        assertEquals(blocks.size() - 1, indexer.getCursorBlockNumber());
+        Assert.assertTrue(indexer.isOperatorFor(operator.toByteArray(), tokenHolder.toByteArray()));
+        assertBalances();
+    }
+
+    @Test
+    public void testOtherContract() {
+        byte[] data = new ABIStreamingEncoder().encodeOneString("OTHER")
+                .encodeOneString("OTH")
+                .encodeOneInteger(1)
+                .encodeOneByteArray(BigInteger.TEN.pow(30).toByteArray())
+                .toBytes();
+        AvmRule.ResultWrapper result = avmRule.deploy(deployer, BigInteger.ZERO, avmRule.getDappBytes(ATSTokenContract.class, data));
+        Assert.assertTrue(result.getReceiptStatus().isSuccess());
+        Assert.assertFalse(indexer.index(blocks.size(), 0, result.getDappAddress().toByteArray(), getTopics(result.getLogs().get(0)), result.getLogs().get(0).getData()));
+        assertBalances();
+    }
+
+    /**
+     * Logs at or before the cursor are skipped.
+     */
+    @Test
+    public void testReplay() {
+        AvmRule.ResultWrapper result = avmRule.call(deployer, contractAddress, BigInteger.ZERO, new ABIStreamingEncoder().encodeOneString("send")
+                .encodeOneAddress(tokenHolder).encodeOneByteArray(BigInteger.TEN.toByteArray()).encodeOneByteArray(new byte[0]).toBytes());
+        Assert.assertTrue(result.getReceiptStatus().isSuccess());
+        long blockNumber = blocks.size();
+        IExecutionLog log = result.getLogs().get(0);
+        Assert.assertTrue(indexer.index(blockNumber, 0, contractAddress.toByteArray(), getTopics(log), log.getData()));
+        Assert.assertFalse(indexer.index(blockNumber, 0, contractAddress.toByteArray(), getTopics(log), log.getData()));
+        Assert.assertFalse(indexer.index(blockNumber - 1, 3, contractAddress.toByteArray(), getTopics(log), log.getData()));
+        assertBalances();
+    }
+
+    private void call(Address from, ABIStreamingEncoder encoder) {
+        AvmRule.ResultWrapper result = avmRule.call(from, contractAddress, BigInteger.ZERO, encoder.toBytes());
+        Assert.assertTrue(result.getReceiptStatus().isSuccess());
+        addBlock(result);
+    }
+
+    private void addBlock(AvmRule.ResultWrapper result) {
+        blocks.add(result);
+        index(blocks.size() - 1, result);
+    }
+
+    private void index(long blockNumber, AvmRule.ResultWrapper result) {
+        List<IExecutionLog> logs = result.getLogs();
+        for (int logIndex = 0; logIndex < logs.size(); logIndex++) {
+            IExecutionLog log = logs.get(logIndex);
+            indexer.index(blockNumber, logIndex, log.getSourceAddress().toBytes(), getTopics(log), log.getData());
+        }
+    }
+
+    private static byte[][] getTopics(IExecutionLog log) {
+        return log.getTopics().toArray(new byte[0][]);
+    }
+
+    private void assertBalances() {
+        for (Address holder : new Address[]{deployer, genesisHolder, tokenHolder, operator}) {
+            AvmRule.ResultWrapper result = avmRule.call(deployer, contractAddress, BigInteger.ZERO,
+                    new ABIStreamingEncoder().encodeOneString("getBalanceOf").encodeOneAddress(holder).toBytes());
+            assertEquals(result.getDecodedReturnData(), indexer.getBalance(holder.toByteArray()).toString());
+        }
+    }
+
+    private void assertOperators() {
+        for (Address candidate : new Address[]{defaultOperator, operator, deployer}) {
+            AvmRule.ResultWrapper result = avmRule.call(deployer, contractAddress, BigInteger.ZERO,
+                    new ABIStreamingEncoder().encodeOneString("isOperatorFor").encodeOneAddress(candidate).encodeOneAddress(tokenHolder).toBytes());
+            assertEquals(result.getDecodedReturnData(), indexer.isOperatorFor(candidate.toByteArray(), tokenHolder.toByteArray()));
+        }
+    }
+}